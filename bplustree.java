@@ -1,35 +1,892 @@
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
 
 public class bplustree {
 	
+	//Capacity of the internal nodes
 	final int MaxKeyNum;
 	final int MinKeyNum;
 	final int MaxChildrenNum;
+	//Capacity of the external nodes, which is the same as the internal one unless a leaf order is given
+	final int MaxLeafKeyNum;
+	final int MinLeafKeyNum;
+	
+	//Nodes holding at most this many keys are scanned linearly by the HYBRID strategy
+	final static int LINEAR_SCAN_LIMIT = 32;
+	
+	//How a key is located inside a node
+	//LINEAR: branch-free scan of every key, which the JIT can vectorize for small nodes
+	//BINARY: branch-free binary search, cost grows with log(order)
+	//HYBRID: LINEAR for nodes with at most LINEAR_SCAN_LIMIT keys, BINARY otherwise
+	enum SearchStrategy {LINEAR, BINARY, HYBRID}
+	
+	final SearchStrategy strategy;
 	
 	Node root;
 	
+	//Number of lookups searchMany moves down the tree together
+	private final static int SEARCH_GROUP = 16;
+	
+	//Deepest possible tree, every internal node has at least two children
+	private final static int MAX_HEIGHT = 64;
+	
+	//Path of the last batch descent, batchPath[i] is an internal node and batchIndexes[i] the child taken
+	//When batchBounded[i] the keys under that child are smaller than batchHighs[i]
+	private final InternalNode[] batchPath = new InternalNode[MAX_HEIGHT];
+	private final int[] batchIndexes = new int[MAX_HEIGHT];
+	private final int[] batchHighs = new int[MAX_HEIGHT];
+	private final boolean[] batchBounded = new boolean[MAX_HEIGHT];
+	//A batch with fewer keys per external node than this is applied key by key
+	//The keys of such a batch rarely share a node, so sorting and grouping them costs more than it saves
+	private final static double MIN_INSERT_BATCH_DENSITY = 1;
+	private final static double MIN_DELETE_BATCH_DENSITY = 0.5;
+	//Scratch space holding the pairs of an external node which overflows during a batch
+	private int[] mergeKeys = new int[0];
+	private double[] mergeValues = new double[0];
+	
+	//Split, borrow and merge counters and sampled latencies, see bplustreemetrics
+	final bplustreemetrics metrics = new bplustreemetrics();
+	
+	//Snapshot files written by save and read by load, all numbers are little-endian
+	//Header: magic, version, order, leaf order, sequence, CRC32 of the header fields
+	//Blocks: pair count n in [1, SNAPSHOT_BLOCK_PAIRS], n keys, n values, CRC32 of the block fields
+	//Trailer: 0, total number of pairs, CRC32 of the trailer fields
+	//The keys follow the external node chain, so they never decrease from one pair to the next
+	final static int SNAPSHOT_MAGIC = 0x53545042;
+	final static int SNAPSHOT_VERSION = 1;
+	private final static int SNAPSHOT_HEADER_SIZE = 28;
+	private final static int SNAPSHOT_BLOCK_PAIRS = 8192;
+	
+	//Cache of hot keys in front of the point lookups, null when off, see setCache
+	private bplustreecache cache;
+	
+	//Secondary index from values to keys, null when off, see createValueIndex
+	private bplustreevalueindex valueIndex;
+	
+	//Inserts of ascending keys in a row after which a node filled at its end is split right-biased
+	private final static int SEQUENTIAL_RUN = 8;
+	
+	//Right-biased split, see setSequentialSplitFill
+	private double sequentialSplitFill;
+	//Keys an external node keeps and keys an internal node gives away in a right-biased split
+	private int sequentialLeafKeep;
+	private int sequentialInternalMove;
+	private int lastInsertKey;
+	private int ascendingRun;
+	
+	//Lazy deletion, see setLazyDeletion
+	private boolean lazyDeletion;
+	private int underfullThreshold;
+	private int rebalanceBatch;
+	//External nodes which fell below underfullThreshold keys, a node may have been merged away since it was queued
+	private final ArrayDeque<ExternalNode> underfull = new ArrayDeque<>();
+	
 	bplustree(int order){
+		this(order, SearchStrategy.HYBRID);
+	}
+	
+	bplustree(int order, SearchStrategy strategy){
+		this(order, order, strategy);
+	}
+	
+	//Internal nodes have at most order children and external nodes at most leafOrder - 1 pairs
+	//Small internal nodes keep the upper levels in the cache while large external nodes make scans cheaper
+	bplustree(int order, int leafOrder){
+		this(order, leafOrder, SearchStrategy.HYBRID);
+	}
+	
+	bplustree(int order, int leafOrder, SearchStrategy strategy){
 		this.MaxKeyNum = order - 1;
 		this.MinKeyNum = (int)Math.ceil(((double)order)/2) - 1;
 		this.MaxChildrenNum = order;
+		this.MaxLeafKeyNum = leafOrder - 1;
+		this.MinLeafKeyNum = (int)Math.ceil(((double)leafOrder)/2) - 1;
+		this.strategy = strategy;
 		this.root = new ExternalNode();
+		setSequentialSplitFill(0.9);
+	}
+	
+	//Bulk load a tree from keys sorted in strictly increasing order, values[i] belongs to keys[i]
+	//See bulkLoad for the meaning of fillFactor
+	bplustree(int order, int[] keys, double[] values, double fillFactor){
+		this(order);
+		if(keys.length != values.length)
+			throw new IllegalArgumentException("keys and values have different lengths");
+		bulkLoad(new ArraySource(keys, values), fillFactor, true);
+	}
+	
+	//Bulk load a tree from a source returning keys in strictly increasing order
+	bplustree(int order, KeyValueSource source, double fillFactor){
+		this(order);
+		bulkLoad(source, fillFactor, true);
+	}
+	
+	//Write every pair to a snapshot file, which load turns back into a tree much faster than inserting the pairs
+	//The file is written next to path and moved over it once it is complete, so an old snapshot survives a crash
+	public void save(Path path) throws IOException {
+		Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+		writeSnapshot(tmp, cursor(Integer.MIN_VALUE, Integer.MAX_VALUE), MaxChildrenNum, MaxLeafKeyNum + 1, 0);
+		Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+	
+	//Build a tree from a snapshot file with full nodes, it has the orders of the saved tree
+	public static bplustree load(Path path) throws IOException {
+		return load(path, 1);
+	}
+	
+	//Build a tree from a snapshot file, see bulkLoad for the meaning of fillFactor
+	public static bplustree load(Path path, double fillFactor) throws IOException {
+		try(SnapshotReader reader = new SnapshotReader(path)) {
+			return reader.load(new bplustree(reader.order, reader.leafOrder), fillFactor);
+		}
+	}
+	
+	//Write the pairs of a source to a snapshot file in blocks and force it to the device
+	//sequence is stored as it is, durablebplustree keeps the last log record of a checkpoint in it
+	//Return the number of written pairs
+	static long writeSnapshot(Path path, KeyValueSource source, int order, int leafOrder, long sequence) throws IOException {
+		try(FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			ByteBuffer buffer = ByteBuffer.allocate(8 + 12 * SNAPSHOT_BLOCK_PAIRS).order(ByteOrder.LITTLE_ENDIAN);
+			CRC32 crc = new CRC32();
+			buffer.putInt(SNAPSHOT_MAGIC).putInt(SNAPSHOT_VERSION).putInt(order).putInt(leafOrder).putLong(sequence);
+			writeSnapshotBlock(channel, buffer, crc);
+			int[] keys = new int[SNAPSHOT_BLOCK_PAIRS];
+			double[] values = new double[SNAPSHOT_BLOCK_PAIRS];
+			long count = 0;
+			boolean more = source.next();
+			while(more) {
+				int n = 0;
+				while(more && n < SNAPSHOT_BLOCK_PAIRS) {
+					keys[n] = source.key();
+					values[n] = source.value();
+					n++;
+					more = source.next();
+				}
+				buffer.putInt(n);
+				buffer.asIntBuffer().put(keys, 0, n);
+				buffer.position(4 + 4 * n);
+				buffer.asDoubleBuffer().put(values, 0, n);
+				buffer.position(4 + 12 * n);
+				writeSnapshotBlock(channel, buffer, crc);
+				count += n;
+			}
+			buffer.putInt(0).putLong(count);
+			writeSnapshotBlock(channel, buffer, crc);
+			channel.force(true);
+			return count;
+		}
+	}
+	
+	//Append the CRC32 of the bytes put into the buffer and write them all
+	private static void writeSnapshotBlock(FileChannel channel, ByteBuffer buffer, CRC32 crc) throws IOException {
+		crc.reset();
+		crc.update(buffer.array(), 0, buffer.position());
+		buffer.putInt((int)crc.getValue());
+		buffer.flip();
+		while(buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+		buffer.clear();
 	}
 	
 	public void insert(int key, double value) {
+		long start = metrics.start();
+		if(cache != null)
+			cache.invalidate(key);
+		ascendingRun = key > lastInsertKey ? ascendingRun + 1 : 0;
+		lastInsertKey = key;
 		root.insert(key, value);
+		if(valueIndex != null)
+			valueIndex.add(value, key);
+		metrics.stop(bplustreemetrics.Operation.INSERT, start);
 	}
 	
 	public String search(int key) {
-		return root.search(key);
+		long start = metrics.start();
+		String result;
+		if(cache == null) {
+			result = root.search(key);
+		}else {
+			int entry = cachedEntry(key);
+			result = entry == -1 ? "" : cache.string(entry);
+		}
+		metrics.stop(bplustreemetrics.Operation.SEARCH, start);
+		return result;
+	}
+	
+	//Return the value of a key, or notFound when the key doesn't exist
+	public double searchValue(int key, double notFound) {
+		long start = metrics.start();
+		double value;
+		if(cache == null) {
+			ExternalNode leaf = root.findLeaf(key);
+			int index = leaf.firstIndexOf(key);
+			value = index == -1 ? notFound : leaf.valueAt(index);
+		}else {
+			int entry = cachedEntry(key);
+			value = entry == -1 ? notFound : cache.value(entry);
+		}
+		metrics.stop(bplustreemetrics.Operation.SEARCH, start);
+		return value;
+	}
+	
+	//Start keeping a bplustreevalueindex of the pairs, inserts and deletes update it from now on
+	//Writes pay for a second tree, in return searchByValue finds the keys of a value range without a full scan
+	//Return the number of pairs indexed, it does nothing when the index exists already
+	public long createValueIndex() {
+		if(valueIndex == null) {
+			valueIndex = new bplustreevalueindex(MaxChildrenNum);
+			RangeCursor cursor = cursor(Integer.MIN_VALUE, Integer.MAX_VALUE);
+			while(cursor.next()) {
+				valueIndex.add(cursor.value(), cursor.key());
+			}
+		}
+		return valueIndex.size();
+	}
+	
+	public void dropValueIndex() {
+		valueIndex = null;
+	}
+	
+	//Visit the pairs whose values are in [low, high] ordered by value, pairs with the same value ordered by key
+	//It needs the index of createValueIndex, see bplustreevalueindex for how values are ordered
+	//Return the number of visited pairs
+	public int searchByValue(double low, double high, KeyValueVisitor visitor) {
+		if(valueIndex == null)
+			throw new IllegalStateException("There is no value index, call createValueIndex first");
+		return valueIndex.search(low, high, visitor);
+	}
+	
+	//Keep the values of up to capacity hot keys in a bplustreecache, so point lookups of cached keys
+	//don't walk down the tree and search(int) returns the same String every time instead of a new one
+	//A lookup which misses caches the key it found, inserts and deletes drop the keys they change
+	//0 removes the cache, changing the capacity starts from an empty cache
+	//With the cache on a point lookup writes to it, so lookups on several threads need the lock writers take
+	public void setCache(int capacity) {
+		cache = capacity == 0 ? null : new bplustreecache(capacity);
 	}
 	
+	//The cache set by setCache with its hit counters, or null
+	public bplustreecache cache() {
+		return cache;
+	}
+	
+	//Look a key up in the cache, on a miss read it from the tree and cache it
+	//Return its cache entry, or -1 when the key doesn't exist
+	private int cachedEntry(int key) {
+		int entry = cache.find(key);
+		if(entry != -1)
+			return entry;
+		ExternalNode leaf = root.findLeaf(key);
+		int index = leaf.firstIndexOf(key);
+		return index == -1 ? -1 : cache.add(key, leaf.valueAt(index));
+	}
+	
+	//Look up many keys at once, out[i] and found[i] receive the result for keys[i]
+	//The keys need not be sorted, out[i] is left alone when keys[i] doesn't exist
+	//Lookups go down the tree in groups, one level at a time for the whole group,
+	//so the cache misses of the different lookups overlap instead of being waited for one after another
+	//Return the number of keys found
+	public int searchMany(int[] keys, double[] out, boolean[] found) {
+		if(out.length < keys.length || found.length < keys.length)
+			throw new IllegalArgumentException("out and found must be as long as keys");
+		Node[] nodes = new Node[SEARCH_GROUP];
+		int count = 0;
+		for(int start = 0; start < keys.length; start += SEARCH_GROUP) {
+			int size = Math.min(SEARCH_GROUP, keys.length - start);
+			for(int i = 0; i < size; i++) {
+				nodes[i] = root;
+			}
+			//Every external node has the same depth, so the whole group reaches them at the same time
+			while(nodes[0] instanceof InternalNode) {
+				for(int i = 0; i < size; i++) {
+					InternalNode node = (InternalNode)nodes[i];
+					nodes[i] = node.children[node.getIndex(keys[start + i])];
+				}
+			}
+			for(int i = 0; i < size; i++) {
+				ExternalNode leaf = (ExternalNode)nodes[i];
+				int index = leaf.firstIndexOf(keys[start + i]);
+				found[start + i] = index != -1;
+				if(index != -1) {
+					out[start + i] = leaf.valueAt(index);
+					count++;
+				}
+			}
+		}
+		return count;
+	}
+	
+	//Search for a specified key without allocating, the visitor gets the pair search(key) would return
+	//Return false and leave the visitor alone when the key doesn't exist
+	public boolean search(int key, KeyValueVisitor visitor) {
+		long start = metrics.start();
+		boolean found;
+		if(cache == null) {
+			ExternalNode leaf = root.findLeaf(key);
+			int index = leaf.firstIndexOf(key);
+			found = index != -1;
+			if(found)
+				visitor.visit(key, leaf.valueAt(index));
+		}else {
+			int entry = cachedEntry(key);
+			found = entry != -1;
+			if(found)
+				visitor.visit(key, cache.value(entry));
+		}
+		metrics.stop(bplustreemetrics.Operation.SEARCH, start);
+		return found;
+	}
+	
+	//Range search
+	//It will return "" when there is no key in the range
 	public String search(int startKey, int endKey) {
-		return root.search(startKey, endKey);
+		StringBuilder sb = new StringBuilder();
+		search(startKey, endKey, (key, value) -> {
+			if(sb.length() != 0)
+				sb.append(",");
+			sb.append(value);
+		});
+		return sb.toString();
+	}
+	
+	//Range search which streams every key-value pair in [startKey, endKey] to the visitor in key order
+	//Nothing is allocated per pair, it returns the number of visited pairs
+	public int search(int startKey, int endKey, KeyValueVisitor visitor) {
+		if(startKey > endKey)
+			return 0;
+		long start = metrics.start();
+		int count = root.findLeaf(startKey).scan(startKey, endKey, visitor);
+		metrics.stop(bplustreemetrics.Operation.RANGE, start);
+		return count;
+	}
+	
+	//Range search in descending key order, the pairs in [startKey, endKey] are streamed from endKey down
+	//It walks the pre links of the external nodes, nothing is allocated per pair
+	//Return the number of visited pairs
+	public int searchDescending(int startKey, int endKey, KeyValueVisitor visitor) {
+		if(startKey > endKey)
+			return 0;
+		long start = metrics.start();
+		ExternalNode leaf = root.findLeaf(endKey);
+		int count = leaf.scanDescending(leaf.getIndex(endKey) - 1, startKey, Integer.MAX_VALUE, visitor);
+		metrics.stop(bplustreemetrics.Operation.RANGE, start);
+		return count;
+	}
+	
+	//Stream the n pairs with the largest keys below key to the visitor, largest first
+	//It costs one descent plus n steps along the pre links, however many keys are below key
+	//Return the number of visited pairs, which is smaller than n when fewer keys are below key
+	public int lowerN(int key, int n, KeyValueVisitor visitor) {
+		if(n <= 0 || key == Integer.MIN_VALUE)
+			return 0;
+		long start = metrics.start();
+		ExternalNode leaf = root.findLeaf(key - 1);
+		int count = leaf.scanDescending(leaf.getIndex(key - 1) - 1, Integer.MIN_VALUE, n, visitor);
+		metrics.stop(bplustreemetrics.Operation.RANGE, start);
+		return count;
+	}
+	
+	//Give the visitor the pair with the largest key not larger than key
+	//Return false and leave the visitor alone when every key is larger
+	public boolean floor(int key, KeyValueVisitor visitor) {
+		long start = metrics.start();
+		ExternalNode leaf = root.findLeaf(key);
+		boolean found = leaf.scanDescending(leaf.getIndex(key) - 1, Integer.MIN_VALUE, 1, visitor) == 1;
+		metrics.stop(bplustreemetrics.Operation.SEARCH, start);
+		return found;
+	}
+	
+	//Give the visitor the pair with the smallest key not smaller than key
+	//Return false and leave the visitor alone when every key is smaller
+	public boolean ceiling(int key, KeyValueVisitor visitor) {
+		long start = metrics.start();
+		ExternalNode leaf = root.findLeaf(key);
+		int index = leaf.lowerIndex(key);
+		while(index == leaf.keyNum && leaf.after != null) {
+			leaf = leaf.after;
+			index = 0;
+		}
+		boolean found = index < leaf.keyNum;
+		if(found)
+			visitor.visit(leaf.keyAt(index), leaf.valueAt(index));
+		metrics.stop(bplustreemetrics.Operation.SEARCH, start);
+		return found;
+	}
+	
+	//Split a full node right-biased while keys are inserted in ascending order
+	//A split in the middle leaves every node of an ascending run half full, as nothing is inserted into it again
+	//After SEQUENTIAL_RUN ascending inserts a node which overflows at its end keeps about fill of its keys
+	//and the new node on its right gets the rest, which the next inserts of the run fill up
+	//fill is in [0.5, 1], or 0 to always split in the middle
+	//The new node starts below the minimum key number, deletes rebalance it like any deficient node
+	public void setSequentialSplitFill(double fill) {
+		if(fill != 0 && !(fill >= 0.5 && fill <= 1))
+			throw new IllegalArgumentException("fill must be 0 or in [0.5, 1]: " + fill);
+		sequentialSplitFill = fill;
+		//The sibling gets at least one key, an internal sibling one key and two children
+		sequentialLeafKeep = Math.max(MinLeafKeyNum, Math.min(MaxLeafKeyNum, (int)Math.round(MaxLeafKeyNum * fill)));
+		sequentialInternalMove = Math.max(1, Math.min(MinKeyNum, MaxKeyNum - (int)Math.round(MaxKeyNum * fill)));
+	}
+	
+	//Whether a full node with keyNum keys in which a key goes at index is split right-biased
+	private boolean appending(int index, int keyNum) {
+		return index == keyNum && sequentialSplitFill != 0 && ascendingRun >= SEQUENTIAL_RUN;
+	}
+	
+	//Switch to lazy deletion for runs of deletes which must not wait for rebalancing
+	//A delete only removes the pair from its external node and lets the node go below MinLeafKeyNum keys,
+	//a node falling below threshold keys is queued and rebalanceUnderfull fixes the queued nodes later
+	//threshold is in [1, MinLeafKeyNum], nodes with at least threshold keys are left alone until eager deletion is back
+	//batch is the number of nodes scheduleRebalancing fixes per run
+	public synchronized void setLazyDeletion(int threshold, int batch) {
+		if(threshold < 1 || threshold > MinLeafKeyNum)
+			throw new IllegalArgumentException("The threshold must be in [1, " + MinLeafKeyNum + "]: " + threshold);
+		if(batch < 1)
+			throw new IllegalArgumentException("The batch must be positive: " + batch);
+		lazyDeletion = true;
+		underfullThreshold = threshold;
+		rebalanceBatch = batch;
+	}
+	
+	//Go back to rebalancing on every delete
+	//Every external node below MinLeafKeyNum keys is rebalanced first, so the external nodes are all at least half full again
+	public synchronized void setEagerDeletion() {
+		lazyDeletion = false;
+		Node node = root;
+		while(node instanceof InternalNode) {
+			node = ((InternalNode)node).children[0];
+		}
+		for(ExternalNode leaf = (ExternalNode)node; leaf != null; leaf = leaf.after) {
+			if(leaf.keyNum < MinLeafKeyNum && !leaf.queued && leaf.parent != null) {
+				leaf.queued = true;
+				underfull.add(leaf);
+			}
+		}
+		underfullThreshold = MinLeafKeyNum;
+		rebalanceUnderfull(Integer.MAX_VALUE);
+	}
+	
+	//Rebalance at most maxNodes queued external nodes, one at a time like deleteBatch does
+	//A merge may leave the parent deficient, which is fixed at once by borrowOrMergeFromSibling
+	//Return the number of rebalanced nodes
+	public synchronized int rebalanceUnderfull(int maxNodes) {
+		int fixed = 0;
+		while(fixed < maxNodes && !underfull.isEmpty()) {
+			ExternalNode node = underfull.poll();
+			node.queued = false;
+			int index = node.indexInParent();
+			//Skip a node which was merged away, became the root or was filled again
+			if(index == -1 || node.keyNum >= MinLeafKeyNum)
+				continue;
+			ExternalNode left = index != 0 ? (ExternalNode)node.parent.children[index - 1] : null;
+			node.inflate();
+			node.rebalance(index);
+			fixed++;
+			//A merge of two underfull nodes may still be underfull
+			queueIfUnderfull(node);
+			if(left != null)
+				queueIfUnderfull(left);
+		}
+		return fixed;
+	}
+	
+	//Number of queued external nodes waiting for rebalanceUnderfull
+	public synchronized int underfullNodes() {
+		return underfull.size();
+	}
+	
+	//Run rebalanceUnderfull with the batch of setLazyDeletion every period on the executor
+	//The task holds the tree's monitor while it runs, so every other use of the tree must hold it as well
+	public ScheduledFuture<?> scheduleRebalancing(ScheduledExecutorService executor, long period, TimeUnit unit) {
+		return executor.scheduleWithFixedDelay(() -> {
+			synchronized(this) {
+				if(lazyDeletion)
+					rebalanceUnderfull(rebalanceBatch);
+			}
+		}, period, period, unit);
+	}
+	
+	private void queueIfUnderfull(ExternalNode node) {
+		if(!node.queued && node.keyNum < underfullThreshold && node.indexInParent() != -1) {
+			node.queued = true;
+			underfull.add(node);
+		}
+	}
+	
+	//Count, sum, minimum and maximum of the values whose keys are in [startKey, endKey]
+	//The range is cut at the separator keys of the internal nodes and the subtrees are aggregated in parallel
+	//on the common ForkJoinPool, the tree must not be modified until it returns
+	public RangeAggregate aggregate(int startKey, int endKey) {
+		return aggregate(startKey, endKey, ForkJoinPool.commonPool());
+	}
+	
+	public RangeAggregate aggregate(int startKey, int endKey, ForkJoinPool pool) {
+		if(startKey > endKey)
+			return new RangeAggregate();
+		return pool.invoke(new AggregateTask(root, startKey, endKey));
+	}
+	
+	//Open a cursor over the key-value pairs in [startKey, endKey]
+	public RangeCursor cursor(int startKey, int endKey) {
+		RangeCursor cursor = new RangeCursor();
+		cursor.reset(startKey, endKey);
+		return cursor;
 	}
 	
 	public void delete(int key) {
+		long start = metrics.start();
+		if(cache != null)
+			cache.invalidate(key);
+		if(valueIndex != null) {
+			//Find the value of the pair root.delete removes
+			ExternalNode leaf = root.findLeaf(key);
+			int index = leaf.indexOf(key);
+			if(index != -1)
+				valueIndex.remove(leaf.valueAt(index), key);
+		}
 		root.delete(key);
+		metrics.stop(bplustreemetrics.Operation.DELETE, start);
+	}
+	
+	//Compress every external node, see CompressedLeaf
+	//Searches and range searches read compressed nodes as they are, a node goes back to full arrays
+	//when an insert or delete modifies it, so compact suits data which is mostly read after it is loaded
+	//Return the number of compressed nodes
+	public int compact() {
+		Node node = root;
+		while(node instanceof InternalNode) {
+			node = ((InternalNode)node).children[0];
+		}
+		int count = 0;
+		for(ExternalNode leaf = (ExternalNode)node; leaf != null; leaf = leaf.after) {
+			if(leaf.packed == null && leaf.keyNum != 0) {
+				leaf.compact();
+				count++;
+			}
+		}
+		return count;
+	}
+	
+	//Insert many pairs at once, values[i] belongs to keys[i]
+	//The result is the same as inserting them one by one in key order
+	//The pairs are sorted, each external node is reached once and gets all its new pairs together,
+	//and a node which overflows is split into as many nodes as needed at once
+	//A batch sparser than MIN_INSERT_BATCH_DENSITY is inserted key by key
+	public void insertBatch(int[] keys, double[] values) {
+		if(keys.length != values.length)
+			throw new IllegalArgumentException("keys and values have different lengths");
+		if(keys.length < MIN_INSERT_BATCH_DENSITY * estimatedLeafCount()) {
+			for(int i = 0; i < keys.length; i++) {
+				insert(keys[i], values[i]);
+			}
+			return;
+		}
+		//Sort the keys together with their positions, equal keys keep their order
+		long[] sorted = new long[keys.length];
+		for(int i = 0; i < keys.length; i++) {
+			sorted[i] = ((long)keys[i] << 32) | i;
+		}
+		Arrays.sort(sorted);
+		if(cache != null) {
+			for(int key : keys) {
+				cache.invalidate(key);
+			}
+		}
+		int depth = 0;
+		int i = 0;
+		while(i < sorted.length) {
+			depth = batchDescend((int)(sorted[i] >> 32), depth);
+			int end = i + 1;
+			while(end < sorted.length && inBatchLeaf((int)(sorted[end] >> 32), depth)) {
+				end++;
+			}
+			if(batchLeaf(depth).insertGroup(sorted, i, end, values))
+				depth = 0;
+			i = end;
+		}
+		if(valueIndex != null) {
+			for(int k = 0; k < keys.length; k++) {
+				valueIndex.add(values[k], keys[k]);
+			}
+		}
+	}
+	
+	//Delete many keys at once, the result is the same as deleting them one by one
+	//Each external node is reached once and loses all its keys together, then it is rebalanced once
+	//A batch sparser than MIN_DELETE_BATCH_DENSITY is deleted key by key
+	public void deleteBatch(int[] keys) {
+		if(keys.length < MIN_DELETE_BATCH_DENSITY * estimatedLeafCount()) {
+			for(int key : keys) {
+				delete(key);
+			}
+			return;
+		}
+		int[] sorted = keys.clone();
+		Arrays.sort(sorted);
+		if(cache != null) {
+			for(int key : keys) {
+				cache.invalidate(key);
+			}
+		}
+		int depth = 0;
+		int i = 0;
+		while(i < sorted.length) {
+			depth = batchDescend(sorted[i], depth);
+			int end = i + 1;
+			while(end < sorted.length && inBatchLeaf(sorted[end], depth)) {
+				end++;
+			}
+			ExternalNode leaf = batchLeaf(depth);
+			leaf.deleteGroup(sorted, i, end);
+			if(leaf.keyNum < MinLeafKeyNum && leaf.parent != null) {
+				leaf.rebalance(batchIndexes[depth - 1]);
+				depth = 0;
+			}
+			i = end;
+		}
+	}
+	
+	//Estimate the number of external nodes
+	//On the way down through the middle children, every level multiplies the estimate by the average fan-out
+	//of the children of the node passed, which is steadier than the fan-out of the node alone
+	private double estimatedLeafCount() {
+		if(!(root instanceof InternalNode))
+			return 1;
+		InternalNode node = (InternalNode)root;
+		double count = node.keyNum + 1;
+		while(node.children[0] instanceof InternalNode) {
+			int children = 0;
+			for(int i = 0; i <= node.keyNum; i++) {
+				children += node.children[i].keyNum + 1;
+			}
+			count = count * children / (node.keyNum + 1);
+			node = (InternalNode)node.children[node.keyNum / 2];
+		}
+		return count;
+	}
+	
+	//Walk down to the external node of a key and record the path
+	//The keys of a batch come in ascending order, so the walk starts from the deepest node of the previous path
+	//whose range still holds the key, depth is the depth of the previous path or 0 to start from the root
+	//Return the depth of the external node
+	private int batchDescend(int key, int depth) {
+		int level = depth;
+		while(level > 0 && !(batchBounded[level - 1] && key < batchHighs[level - 1])) {
+			level--;
+		}
+		Node node = level == 0 ? root : batchPath[level - 1].children[batchIndexes[level - 1]];
+		while(node instanceof InternalNode) {
+			InternalNode internal = (InternalNode)node;
+			int index = internal.getIndex(key);
+			batchPath[level] = internal;
+			batchIndexes[level] = index;
+			if(index < internal.keyNum) {
+				batchHighs[level] = internal.keys[index];
+				batchBounded[level] = true;
+			}else if(level > 0) {
+				batchHighs[level] = batchHighs[level - 1];
+				batchBounded[level] = batchBounded[level - 1];
+			}else {
+				batchBounded[level] = false;
+			}
+			node = internal.children[index];
+			level++;
+		}
+		return level;
+	}
+	
+	private ExternalNode batchLeaf(int depth) {
+		return (ExternalNode)(depth == 0 ? root : batchPath[depth - 1].children[batchIndexes[depth - 1]]);
+	}
+	
+	//Whether a key belongs to the external node at the end of the batch path
+	private boolean inBatchLeaf(int key, int depth) {
+		return depth == 0 || !batchBounded[depth - 1] || key < batchHighs[depth - 1];
+	}
+	
+	//Build the tree bottom-up in linear time instead of inserting the pairs one by one
+	//Every node is packed to fillFactor of its capacity, which is in (0, 1]
+	//Leaving room in the nodes lets later inserts avoid splitting at once
+	//With distinct the keys must strictly increase, otherwise equal keys may follow each other like in a saved tree
+	private void bulkLoad(KeyValueSource source, double fillFactor, boolean distinct) {
+		if(!(fillFactor > 0 && fillFactor <= 1))
+			throw new IllegalArgumentException("fillFactor must be in (0, 1]: " + fillFactor);
+		//Fill the external nodes and link them
+		int keysPerLeaf = Math.max(Math.max(MinLeafKeyNum, 1), Math.min(MaxLeafKeyNum, (int)Math.round(MaxLeafKeyNum * fillFactor)));
+		List<Node> level = new ArrayList<>();
+		ExternalNode leaf = null;
+		int lastKey = 0;
+		while(source.next()) {
+			int key = source.key();
+			if(leaf != null && (key < lastKey || (distinct && key == lastKey)))
+				throw new IllegalArgumentException("Keys are not " + (distinct ? "strictly " : "") + "increasing: " + key + " after " + lastKey);
+			lastKey = key;
+			if(leaf == null || leaf.keyNum == keysPerLeaf) {
+				ExternalNode next = new ExternalNode();
+				if(leaf != null) {
+					leaf.after = next;
+					next.pre = leaf;
+				}
+				leaf = next;
+				level.add(leaf);
+			}
+			leaf.keys[leaf.keyNum] = key;
+			leaf.values[leaf.keyNum] = source.value();
+			leaf.keyNum++;
+		}
+		if(level.isEmpty()) {
+			root = new ExternalNode();
+			return;
+		}
+		//The last external node may be deficient, share keys with its left sibling
+		if(level.size() > 1 && leaf.keyNum < MinLeafKeyNum) {
+			ExternalNode sibling = leaf.pre;
+			int total = sibling.keyNum + leaf.keyNum;
+			if(total <= MaxLeafKeyNum) {
+				System.arraycopy(leaf.keys, 0, sibling.keys, sibling.keyNum, leaf.keyNum);
+				System.arraycopy(leaf.values, 0, sibling.values, sibling.keyNum, leaf.keyNum);
+				sibling.keyNum = total;
+				sibling.after = null;
+				level.remove(level.size() - 1);
+			}else {
+				int move = sibling.keyNum - total / 2;
+				System.arraycopy(leaf.keys, 0, leaf.keys, move, leaf.keyNum);
+				System.arraycopy(leaf.values, 0, leaf.values, move, leaf.keyNum);
+				System.arraycopy(sibling.keys, total / 2, leaf.keys, 0, move);
+				System.arraycopy(sibling.values, total / 2, leaf.values, 0, move);
+				sibling.keyNum = total / 2;
+				leaf.keyNum += move;
+			}
+		}
+		//Build the internal levels until a single root is left
+		int childrenPerNode = Math.max(Math.max(MinKeyNum + 1, 2), Math.min(MaxChildrenNum, (int)Math.round(MaxChildrenNum * fillFactor)));
+		while(level.size() > 1) {
+			int[] groupSizes = groupSizes(level.size(), childrenPerNode);
+			List<Node> upperLevel = new ArrayList<>(groupSizes.length);
+			int next = 0;
+			for(int size : groupSizes) {
+				InternalNode node = new InternalNode();
+				for(int i = 0; i < size; i++) {
+					Node child = level.get(next++);
+					if(i != 0)
+						node.keys[i - 1] = minKey(child);
+					node.children[i] = child;
+					child.parent = node;
+				}
+				node.keyNum = size - 1;
+				upperLevel.add(node);
+			}
+			level = upperLevel;
+		}
+		root = level.get(0);
+		root.parent = null;
+	}
+	
+	//Split n nodes into groups of childrenPerNode
+	//The last group is merged with or balanced against the previous one when it would be deficient
+	private int[] groupSizes(int n, int childrenPerNode) {
+		int groups = (n + childrenPerNode - 1) / childrenPerNode;
+		int[] sizes = new int[groups];
+		Arrays.fill(sizes, childrenPerNode);
+		sizes[groups - 1] = n - childrenPerNode * (groups - 1);
+		if(groups > 1 && sizes[groups - 1] < MinKeyNum + 1) {
+			int total = sizes[groups - 2] + sizes[groups - 1];
+			if(total <= MaxChildrenNum) {
+				sizes = Arrays.copyOf(sizes, groups - 1);
+				sizes[groups - 2] = total;
+			}else {
+				sizes[groups - 2] = total / 2;
+				sizes[groups - 1] = total - total / 2;
+			}
+		}
+		return sizes;
+	}
+	
+	//The smallest key stored under a node
+	private static int minKey(Node node) {
+		while(node instanceof InternalNode) {
+			node = ((InternalNode)node).children[0];
+		}
+		return node.keys[0];
+	}
+	
+	//Return the number of keys in keys[0, keyNum) which are not larger than the given key
+	//For an internal node it is the index of the child to follow
+	int upperBound(int[] keys, int keyNum, int key) {
+		switch(strategy) {
+		case LINEAR:
+			return linearUpperBound(keys, keyNum, key);
+		case BINARY:
+			return binaryUpperBound(keys, keyNum, key);
+		default:
+			if(keyNum <= LINEAR_SCAN_LIMIT)
+				return linearUpperBound(keys, keyNum, key);
+			return binaryUpperBound(keys, keyNum, key);
+		}
+	}
+	
+	//Count the keys not larger than the given key without an early exit
+	//The loop body has no branch, so it is unrolled and vectorized by the JIT
+	static int linearUpperBound(int[] keys, int keyNum, int key) {
+		int count = 0;
+		for(int i = 0; i < keyNum; i++) {
+			count += keys[i] <= key ? 1 : 0;
+		}
+		return count;
+	}
+	
+	//Binary search whose only data dependent operation is a conditional move
+	//The answer always stays in [base, base + n]
+	static int binaryUpperBound(int[] keys, int keyNum, int key) {
+		if(keyNum == 0)
+			return 0;
+		int base = 0;
+		int n = keyNum;
+		while(n > 1) {
+			int half = n >>> 1;
+			base = keys[base + half] <= key ? base + half : base;
+			n -= half;
+		}
+		return base + (keys[base] <= key ? 1 : 0);
+	}
+	
+	//Take a snapshot of the counters, the sampled latencies and the shape of the tree
+	//The shape is collected with one walk over every node, so it costs as much as a full scan
+	public bplustreemetrics.Snapshot metricsSnapshot() {
+		int height = 1;
+		for(Node node = root; node instanceof InternalNode; node = ((InternalNode)node).children[0]) {
+			height++;
+		}
+		int[] nodes = new int[height];
+		long[] keys = new long[height];
+		long[] deficient = new long[height];
+		collectShape(root, 0, nodes, keys, deficient);
+		return metrics.snapshot(MaxKeyNum, MaxLeafKeyNum, nodes, keys, deficient);
+	}
+	
+	//Add the node and its subtree to the per-depth node, key and deficient node counts
+	private void collectShape(Node node, int depth, int[] nodes, long[] keys, long[] deficient) {
+		nodes[depth]++;
+		keys[depth] += node.keyNum;
+		if(node.keyNum < (node instanceof InternalNode ? MinKeyNum : MinLeafKeyNum) && node != root)
+			deficient[depth]++;
+		if(node instanceof InternalNode) {
+			InternalNode internal = (InternalNode)node;
+			for(int i = 0; i <= internal.keyNum; i++) {
+				collectShape(internal.children[i], depth + 1, nodes, keys, deficient);
+			}
+		}
 	}
 	
 	//Used to display the structure of a B+ tree when debugging
@@ -49,6 +906,460 @@ public class bplustree {
 		}
 	}
 	
+	//Receives the key-value pairs of a range search in ascending key order
+	interface KeyValueVisitor {
+		void visit(int key, double value);
+	}
+	
+	//Result of aggregate, min and max are NaN when no key is in the range
+	static class RangeAggregate {
+		
+		long count;
+		double sum;
+		double min = Double.NaN;
+		double max = Double.NaN;
+		
+		void add(double value) {
+			if(count == 0) {
+				min = value;
+				max = value;
+			}else {
+				min = Math.min(min, value);
+				max = Math.max(max, value);
+			}
+			count++;
+			sum += value;
+		}
+		
+		void add(RangeAggregate other) {
+			if(other.count == 0)
+				return;
+			if(count == 0) {
+				min = other.min;
+				max = other.max;
+			}else {
+				min = Math.min(min, other.min);
+				max = Math.max(max, other.max);
+			}
+			count += other.count;
+			sum += other.sum;
+		}
+		
+		double average() {
+			return count == 0 ? Double.NaN : sum / count;
+		}
+		
+		public String toString() {
+			return "count=" + count + ",sum=" + sum + ",min=" + min + ",max=" + max;
+		}
+		
+	}
+	
+	//Aggregates the keys of a subtree which are in [startKey, endKey]
+	//A node whose children are internal nodes forks one task per child overlapping the range,
+	//a node whose children are external nodes is the unit of work and is aggregated by one thread
+	private class AggregateTask extends RecursiveTask<RangeAggregate> {
+		
+		private static final long serialVersionUID = 1L;
+		
+		private final Node node;
+		private final int startKey;
+		private final int endKey;
+		
+		AggregateTask(Node node, int startKey, int endKey) {
+			this.node = node;
+			this.startKey = startKey;
+			this.endKey = endKey;
+		}
+		
+		protected RangeAggregate compute() {
+			RangeAggregate result = new RangeAggregate();
+			if(node instanceof ExternalNode) {
+				aggregateLeaf((ExternalNode)node, result);
+				return result;
+			}
+			InternalNode internal = (InternalNode)node;
+			//Equal keys may sit on both sides of a separator, so the first child is the one holding keys below startKey
+			int first = startKey == Integer.MIN_VALUE ? 0 : internal.getIndex(startKey - 1);
+			int last = internal.getIndex(endKey);
+			if(internal.children[0] instanceof ExternalNode) {
+				for(int i = first; i <= last; i++) {
+					aggregateLeaf((ExternalNode)internal.children[i], result);
+				}
+				return result;
+			}
+			List<AggregateTask> tasks = new ArrayList<>(last - first + 1);
+			for(int i = first; i <= last; i++) {
+				tasks.add(new AggregateTask(internal.children[i], startKey, endKey));
+			}
+			for(AggregateTask task : invokeAll(tasks)) {
+				result.add(task.join());
+			}
+			return result;
+		}
+		
+		private void aggregateLeaf(ExternalNode leaf, RangeAggregate result) {
+			for(int i = leaf.lowerIndex(startKey); i < leaf.keyNum; i++) {
+				if(leaf.keyAt(i) > endKey)
+					return;
+				result.add(leaf.valueAt(i));
+			}
+		}
+		
+	}
+	
+	//Sorted key-value pairs consumed by the bulk loading constructors
+	//Usage: while(source.next()) { source.key(); source.value(); }
+	interface KeyValueSource {
+		boolean next();
+		int key();
+		double value();
+	}
+	
+	//Source over two parallel arrays
+	static class ArraySource implements KeyValueSource {
+		private final int[] keys;
+		private final double[] values;
+		private int index = -1;
+		
+		ArraySource(int[] keys, double[] values){
+			this.keys = keys;
+			this.values = values;
+		}
+		
+		public boolean next() {
+			return ++index < keys.length;
+		}
+		
+		public int key() {
+			return keys[index];
+		}
+		
+		public double value() {
+			return values[index];
+		}
+	}
+	
+	//Source over the pairs of a snapshot file, read one block at a time
+	//The header is checked when it is opened and every block when it is reached, a damaged or truncated file
+	//makes next throw an UncheckedIOException, which load turns back into the IOException
+	static class SnapshotReader implements KeyValueSource, Closeable {
+		final int order;
+		final int leafOrder;
+		final long sequence;
+		private final Path path;
+		private final FileChannel channel;
+		private final ByteBuffer buffer = ByteBuffer.allocate(8 + 12 * SNAPSHOT_BLOCK_PAIRS).order(ByteOrder.LITTLE_ENDIAN);
+		private final CRC32 crc = new CRC32();
+		private final int[] keys = new int[SNAPSHOT_BLOCK_PAIRS];
+		private final double[] values = new double[SNAPSHOT_BLOCK_PAIRS];
+		private int size;
+		private int index;
+		private long count;
+		private boolean finished;
+		
+		SnapshotReader(Path path) throws IOException {
+			this.path = path;
+			this.channel = FileChannel.open(path, StandardOpenOption.READ);
+			try {
+				read(0, SNAPSHOT_HEADER_SIZE);
+				if(buffer.getInt(0) != SNAPSHOT_MAGIC)
+					throw new IOException(path + " isn't a bplustree snapshot");
+				int version = buffer.getInt(4);
+				if(version != SNAPSHOT_VERSION)
+					throw new IOException(path + " has snapshot version " + version + ", only version " + SNAPSHOT_VERSION + " can be read");
+				check(SNAPSHOT_HEADER_SIZE);
+			}catch(IOException e) {
+				channel.close();
+				throw e;
+			}
+			this.order = buffer.getInt(8);
+			this.leafOrder = buffer.getInt(12);
+			this.sequence = buffer.getLong(16);
+		}
+		
+		//Replace the pairs of a tree with the rest of the file and return the tree
+		//The tree may have other orders than the saved one
+		bplustree load(bplustree tree, double fillFactor) throws IOException {
+			try {
+				tree.bulkLoad(this, fillFactor, false);
+			}catch(UncheckedIOException e) {
+				throw e.getCause();
+			}
+			return tree;
+		}
+		
+		public boolean next() {
+			if(++index < size)
+				return true;
+			if(finished)
+				return false;
+			try {
+				return nextBlock();
+			}catch(IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+		
+		public int key() {
+			return keys[index];
+		}
+		
+		public double value() {
+			return values[index];
+		}
+		
+		public void close() throws IOException {
+			channel.close();
+		}
+		
+		//Read the next block, or the trailer and return false
+		private boolean nextBlock() throws IOException {
+			read(0, 4);
+			int n = buffer.getInt(0);
+			if(n < 0 || n > SNAPSHOT_BLOCK_PAIRS)
+				throw new IOException(path + " is corrupt, a block has " + n + " pairs");
+			if(n == 0) {
+				read(4, 16);
+				check(16);
+				if(buffer.getLong(4) != count)
+					throw new IOException(path + " is corrupt, it should hold " + buffer.getLong(4) + " pairs but holds " + count);
+				if(channel.position() != channel.size())
+					throw new IOException(path + " is corrupt, there are bytes after the trailer");
+				finished = true;
+				size = 0;
+				return false;
+			}
+			read(4, 8 + 12 * n);
+			check(8 + 12 * n);
+			buffer.position(4);
+			buffer.asIntBuffer().get(keys, 0, n);
+			buffer.position(4 + 4 * n);
+			buffer.asDoubleBuffer().get(values, 0, n);
+			size = n;
+			index = 0;
+			count += n;
+			return true;
+		}
+		
+		//Fill buffer[from, to) from the file
+		private void read(int from, int to) throws IOException {
+			buffer.limit(to);
+			buffer.position(from);
+			while(buffer.hasRemaining()) {
+				if(channel.read(buffer) < 0)
+					throw new EOFException(path + " is truncated");
+			}
+		}
+		
+		//Compare the CRC32 of buffer[0, length - 4) with the one stored after it
+		private void check(int length) throws IOException {
+			crc.reset();
+			crc.update(buffer.array(), 0, length - 4);
+			if(buffer.getInt(length - 4) != (int)crc.getValue())
+				throw new IOException(path + " is corrupt, a checksum doesn't match");
+		}
+	}
+	
+	//Cursor over the key-value pairs of a range, it walks the after links of the external nodes
+	//Usage: while(cursor.next()) { cursor.key(); cursor.value(); }
+	//A cursor can be reused for another range with reset, so a scan allocates nothing per pair
+	class RangeCursor implements KeyValueSource {
+		private ExternalNode node;
+		private int index;
+		private int endKey;
+		private int key;
+		private double value;
+		
+		public void reset(int startKey, int endKey) {
+			this.endKey = endKey;
+			if(startKey > endKey) {
+				this.node = null;
+				return;
+			}
+			this.node = root.findLeaf(startKey);
+			this.index = node.lowerIndex(startKey);
+		}
+		
+		//Move to the next pair, it returns false when the range is exhausted
+		public boolean next() {
+			while(node != null) {
+				if(index < node.keyNum) {
+					if(node.keyAt(index) > endKey) {
+						node = null;
+						return false;
+					}
+					key = node.keyAt(index);
+					value = node.valueAt(index);
+					index++;
+					return true;
+				}
+				node = node.after;
+				index = 0;
+			}
+			return false;
+		}
+		
+		public int key() {
+			return key;
+		}
+		
+		public double value() {
+			return value;
+		}
+	}
+	
+	//Read-only pairs of an external node in a compact encoding
+	//Keys are stored as offsets from the smallest key (frame of reference) in 1, 2 or 4 bytes,
+	//so a dense key range takes a byte per key
+	//Values are stored as floats when every value is exactly a float, as one byte indexes into a dictionary
+	//when there are few distinct values, and as doubles otherwise
+	//The arrays have exactly one slot per pair, unlike the MaxLeafKeyNum slots of a node
+	static class CompressedLeaf {
+		//Largest dictionary, an index must fit in a byte
+		private final static int MAX_DICTIONARY = 256;
+		
+		final int base;
+		final int size;
+		//Exactly one of the key arrays and one of the value encodings is set
+		final byte[] byteOffsets;
+		final char[] charOffsets;
+		final int[] intOffsets;
+		final float[] floatValues;
+		final byte[] codes;
+		final double[] dictionary;
+		final double[] doubleValues;
+		
+		CompressedLeaf(int[] keys, double[] values, int size){
+			this.base = keys[0];
+			this.size = size;
+			long range = (long)keys[size - 1] - keys[0];
+			byte[] byteOffsets = null;
+			char[] charOffsets = null;
+			int[] intOffsets = null;
+			if(range < 1 << 8) {
+				byteOffsets = new byte[size];
+				for(int i = 0; i < size; i++) {
+					byteOffsets[i] = (byte)(keys[i] - base);
+				}
+			}else if(range < 1 << 16) {
+				charOffsets = new char[size];
+				for(int i = 0; i < size; i++) {
+					charOffsets[i] = (char)(keys[i] - base);
+				}
+			}else {
+				//Offsets up to 2^32 - 1 wrap around, they are compared unsigned
+				intOffsets = new int[size];
+				for(int i = 0; i < size; i++) {
+					intOffsets[i] = keys[i] - base;
+				}
+			}
+			this.byteOffsets = byteOffsets;
+			this.charOffsets = charOffsets;
+			this.intOffsets = intOffsets;
+			//Pick the smallest encoding which gives back the exact bits of every value
+			boolean floats = true;
+			for(int i = 0; i < size && floats; i++) {
+				floats = Double.doubleToRawLongBits((float)values[i]) == Double.doubleToRawLongBits(values[i]);
+			}
+			double[] dictionary = buildDictionary(values, size);
+			if(dictionary != null && size + 8 * dictionary.length < (floats ? 4 : 8) * size) {
+				this.dictionary = dictionary;
+				this.codes = new byte[size];
+				for(int i = 0; i < size; i++) {
+					codes[i] = (byte)indexOf(dictionary, values[i]);
+				}
+				this.floatValues = null;
+				this.doubleValues = null;
+			}else if(floats) {
+				this.floatValues = new float[size];
+				for(int i = 0; i < size; i++) {
+					floatValues[i] = (float)values[i];
+				}
+				this.dictionary = null;
+				this.codes = null;
+				this.doubleValues = null;
+			}else {
+				this.doubleValues = Arrays.copyOf(values, size);
+				this.dictionary = null;
+				this.codes = null;
+				this.floatValues = null;
+			}
+		}
+		
+		//Distinct values by their bits, or null when there are more than MAX_DICTIONARY of them
+		private static double[] buildDictionary(double[] values, int size) {
+			double[] dictionary = new double[Math.min(size, MAX_DICTIONARY)];
+			int count = 0;
+			for(int i = 0; i < size; i++) {
+				if(indexOf(dictionary, count, values[i]) == -1) {
+					if(count == dictionary.length)
+						return null;
+					dictionary[count++] = values[i];
+				}
+			}
+			return Arrays.copyOf(dictionary, count);
+		}
+		
+		private static int indexOf(double[] dictionary, double value) {
+			return indexOf(dictionary, dictionary.length, value);
+		}
+		
+		private static int indexOf(double[] dictionary, int count, double value) {
+			long bits = Double.doubleToRawLongBits(value);
+			for(int i = 0; i < count; i++) {
+				if(Double.doubleToRawLongBits(dictionary[i]) == bits)
+					return i;
+			}
+			return -1;
+		}
+		
+		//Unsigned offset of the key at i
+		private long offset(int i) {
+			if(byteOffsets != null)
+				return byteOffsets[i] & 0xff;
+			if(charOffsets != null)
+				return charOffsets[i];
+			return intOffsets[i] & 0xffffffffL;
+		}
+		
+		int key(int i) {
+			return (int)(base + offset(i));
+		}
+		
+		double value(int i) {
+			if(floatValues != null)
+				return floatValues[i];
+			if(codes != null)
+				return dictionary[codes[i] & 0xff];
+			return doubleValues[i];
+		}
+		
+		//Number of keys which are not larger than the given key
+		int upperBound(int key) {
+			long target = (long)key - base;
+			if(target < 0)
+				return 0;
+			int low = 0;
+			int high = size;
+			while(low < high) {
+				int middle = (low + high) >>> 1;
+				if(offset(middle) <= target)
+					low = middle + 1;
+				else
+					high = middle;
+			}
+			return low;
+		}
+		
+		//Bytes taken by the arrays of the encoding, without object headers
+		int encodedBytes() {
+			int keyBytes = byteOffsets != null ? size : charOffsets != null ? 2 * size : 4 * size;
+			int valueBytes = floatValues != null ? 4 * size : codes != null ? size + 8 * dictionary.length : 8 * size;
+			return keyBytes + valueBytes;
+		}
+	}
+	
 	//Super class for InternalNode and ExternalNode
 	abstract class Node {
 		int keyNum;
@@ -57,9 +1368,10 @@ public class bplustree {
 		
 		abstract public void insert(int key, double value);
 		abstract public String search(int key);
-		abstract public String search(int startKey, int endKey);
 		abstract public void delete(int key);
 		abstract public void display(Queue<Node> nextLevel);
+		//Return the external node which may contain the key
+		abstract ExternalNode findLeaf(int key);
 	}
 	
 	//Internal node of the B+ tree
@@ -100,11 +1412,9 @@ public class bplustree {
 			return children[index].search(key);
 		}
 		
-		//Range search
-		//It will return "" when there is no key in the range
-		public String search(int startKey, int endKey) {
-			int index = getIndex(startKey);
-			return children[index].search(startKey, endKey);
+		ExternalNode findLeaf(int key) {
+			int index = getIndex(key);
+			return children[index].findLeaf(key);
 		}
 		
 		//Delete a key from the internal node
@@ -139,6 +1449,7 @@ public class bplustree {
 				if(keyNum == 0) {
 					root = children[0];
 					root.parent = null;
+					metrics.rootCollapses++;
 				}
 				return;
 			}
@@ -160,6 +1471,7 @@ public class bplustree {
 				keyNum++;
 				parent.keys[indexOfParent - 1] = sibling.keys[sibling.keyNum - 1];
 				sibling.keyNum--;
+				metrics.borrowsFromLeft++;
 			}else if(indexOfParent != parent.keyNum && parent.children[indexOfParent + 1].keyNum > MinKeyNum) {
 				//Borrow from right sibling
 				InternalNode sibling = (InternalNode)parent.children[indexOfParent + 1];
@@ -171,8 +1483,10 @@ public class bplustree {
 				System.arraycopy(sibling.keys, 1, sibling.keys, 0, sibling.keyNum - 1);
 				System.arraycopy(sibling.children, 1, sibling.children, 0, sibling.keyNum);
 				sibling.keyNum--;
+				metrics.borrowsFromRight++;
 			}else {
 				//Start merging
+				metrics.internalMerges++;
 				if(indexOfParent == 0) {
 					//Merge with right sibling
 					InternalNode sibling = (InternalNode)parent.children[indexOfParent + 1];
@@ -213,31 +1527,34 @@ public class bplustree {
 		private void insertFull(int key, Node child) {
 			int index = getIndex(key);
 			InternalNode sibling = new InternalNode();
+			metrics.internalSplits++;
+			//Number of keys moved to the sibling
+			int move = appending(index, keyNum) ? sequentialInternalMove : MinKeyNum;
 			int newKeyForParent = 0;
-			if(index <= keyNum - MinKeyNum - 1) {
-				System.arraycopy(keys, keyNum - MinKeyNum, sibling.keys, 0, MinKeyNum);
-				System.arraycopy(children, keyNum - MinKeyNum, sibling.children, 0, MinKeyNum + 1);
-				newKeyForParent = keys[keyNum - MinKeyNum - 1];
-				System.arraycopy(keys, index, keys, index + 1, keyNum - MinKeyNum - index - 1);
-				System.arraycopy(children, index + 1, children, index + 2, keyNum - MinKeyNum - index - 1);
+			if(index <= keyNum - move - 1) {
+				System.arraycopy(keys, keyNum - move, sibling.keys, 0, move);
+				System.arraycopy(children, keyNum - move, sibling.children, 0, move + 1);
+				newKeyForParent = keys[keyNum - move - 1];
+				System.arraycopy(keys, index, keys, index + 1, keyNum - move - index - 1);
+				System.arraycopy(children, index + 1, children, index + 2, keyNum - move - index - 1);
 				keys[index] = key;
 				children[index + 1] = child;
-			}else if(index == keyNum - MinKeyNum) {
-				System.arraycopy(keys, keyNum - MinKeyNum, sibling.keys, 0, MinKeyNum);
-				System.arraycopy(children, keyNum - MinKeyNum + 1, sibling.children, 1, MinKeyNum);
+			}else if(index == keyNum - move) {
+				System.arraycopy(keys, keyNum - move, sibling.keys, 0, move);
+				System.arraycopy(children, keyNum - move + 1, sibling.children, 1, move);
 				sibling.children[0] = child;
 				newKeyForParent = key;
 			}else {
-				newKeyForParent = keys[keyNum - MinKeyNum];
-				System.arraycopy(keys, keyNum - MinKeyNum + 1, sibling.keys, 0, index - keyNum + MinKeyNum - 1);
-				System.arraycopy(children, keyNum - MinKeyNum + 1, sibling.children, 0, index - keyNum + MinKeyNum);
-				sibling.keys[index - keyNum + MinKeyNum - 1] = key;
-				sibling.children[index - keyNum + MinKeyNum] = child;
-				System.arraycopy(keys, index, sibling.keys, index - keyNum + MinKeyNum, keyNum - index);
-				System.arraycopy(children, index + 1, sibling.children, index - keyNum + MinKeyNum + 1, keyNum - index);
-			}
-			keyNum = keyNum - MinKeyNum;
-			sibling.keyNum = MinKeyNum;
+				newKeyForParent = keys[keyNum - move];
+				System.arraycopy(keys, keyNum - move + 1, sibling.keys, 0, index - keyNum + move - 1);
+				System.arraycopy(children, keyNum - move + 1, sibling.children, 0, index - keyNum + move);
+				sibling.keys[index - keyNum + move - 1] = key;
+				sibling.children[index - keyNum + move] = child;
+				System.arraycopy(keys, index, sibling.keys, index - keyNum + move, keyNum - index);
+				System.arraycopy(children, index + 1, sibling.children, index - keyNum + move + 1, keyNum - index);
+			}
+			keyNum = keyNum - move;
+			sibling.keyNum = move;
 			//Update children
 			for(int i = 0; i <= keyNum; i++) {
 				children[i].parent = this;
@@ -248,6 +1565,7 @@ public class bplustree {
 			//Check if a new root need to be generated
 			if(parent == null) {
 				InternalNode newRoot = new InternalNode();
+				metrics.rootSplits++;
 				newRoot.keyNum = 1;
 				newRoot.keys[0] = newKeyForParent;
 				newRoot.children[0] = this;
@@ -272,11 +1590,7 @@ public class bplustree {
 		}
 		
 		private int getIndex(int key) {
-			for(int i = 0; i < keyNum; i++) {
-				if(key < keys[i])
-					return i;
-			}
-			return keyNum;
+			return upperBound(keys, keyNum, key);
 		}
 		
 	}
@@ -287,12 +1601,16 @@ public class bplustree {
 		double[] values;
 		ExternalNode pre;
 		ExternalNode after;
+		//Compressed pairs of a node packed by compact, keys and values are null while it is set
+		CompressedLeaf packed;
+		//Whether the node is in the underfull queue of lazy deletion
+		boolean queued;
 		
 		ExternalNode(){
 			super.keyNum = 0;
-			super.keys = new int[MaxKeyNum];
+			super.keys = new int[MaxLeafKeyNum];
 			super.parent = null;
-			this.values = new double[MaxKeyNum];
+			this.values = new double[MaxLeafKeyNum];
 			this.pre = null;
 			this.after = null;
 		}
@@ -300,7 +1618,8 @@ public class bplustree {
 		//Insert a key-value pair into the external node
 		//The input key-value pair can't be duplicate
 		public void insert(int key, double value) {
-			if(keyNum == MaxKeyNum) {
+			inflate();
+			if(keyNum == MaxLeafKeyNum) {
 				insertFull(key, value);
 			}else {
 				insertNotFull(key, value);
@@ -310,58 +1629,84 @@ public class bplustree {
 		//Search for a specified key
 		//It will return "" when the key doesn't exist
 		public String search(int key) {
-			for(int i = 0; i < keyNum; i++) {
-				if(keys[i] == key)
-					return new Double(values[i]).toString();
-			}
-			return "";
+			int index = firstIndexOf(key);
+			if(index == -1)
+				return "";
+			return Double.toString(valueAt(index));
 		}
 		
-		//Range search
-		//It will return "" if there is no key in the given range
-		public String search(int startKey, int endKey) {
-			StringBuilder sb = new StringBuilder();
-			boolean startParse = false;
-			for(int i = 0; i < keyNum; i++) {
-				if(keys[i] >= startKey) {
-					if(keys[i] <= endKey) {
-						if(!startParse) {
-							sb.append(values[i]);
-							startParse = true;
-						}else {
-							sb.append(",");
-							sb.append(values[i]);
-						}
-					}else {
-						return sb.toString();
+		ExternalNode findLeaf(int key) {
+			return this;
+		}
+		
+		//Visit the pairs in [startKey, endKey] starting from this node and following the after links
+		//Return the number of visited pairs
+		int scan(int startKey, int endKey, KeyValueVisitor visitor) {
+			int count = 0;
+			ExternalNode node = this;
+			int i = lowerIndex(startKey);
+			while(node != null) {
+				if(node.packed == null) {
+					for(; i < node.keyNum; i++) {
+						if(node.keys[i] > endKey)
+							return count;
+						visitor.visit(node.keys[i], node.values[i]);
+						count++;
+					}
+				}else {
+					CompressedLeaf packed = node.packed;
+					for(; i < node.keyNum; i++) {
+						int key = packed.key(i);
+						if(key > endKey)
+							return count;
+						visitor.visit(key, packed.value(i));
+						count++;
 					}
 				}
+				node = node.after;
+				i = 0;
 			}
-			ExternalNode nextNode = after;
-			while(nextNode != null) {
-				for(int i = 0; i < nextNode.keyNum; i++) {
-					if(nextNode.keys[i] <= endKey) {
-						if(!startParse) {
-							sb.append(nextNode.values[i]);
-							startParse = true;
-						}else {
-							sb.append(",");
-							sb.append(nextNode.values[i]);
-						}
-					}else {
-						return sb.toString();
-					}
+			return count;
+		}
+		
+		//Visit at most limit pairs from position index of this node down, following the pre links,
+		//and stop at the first key below startKey, index may be -1 to start from the end of the previous node
+		//Return the number of visited pairs
+		int scanDescending(int index, int startKey, int limit, KeyValueVisitor visitor) {
+			int count = 0;
+			ExternalNode node = this;
+			int i = index;
+			while(node != null) {
+				for(; i >= 0; i--) {
+					if(count == limit)
+						return count;
+					int key = node.keyAt(i);
+					if(key < startKey)
+						return count;
+					visitor.visit(key, node.valueAt(i));
+					count++;
 				}
-				nextNode = nextNode.after;
+				node = node.pre;
+				if(node != null)
+					i = node.keyNum - 1;
 			}
-			return sb.toString();
+			return count;
 		}
 		
 		//Delete a key-value pair into the external node
 		//It will do nothing when the key isn't found
 		public void delete(int key) {
-			if(keyNum > MinKeyNum || parent == null) {
+			if(packed != null) {
+				if(indexOf(key) == -1)
+					return;
+				inflate();
+			}
+			if(keyNum > MinLeafKeyNum || parent == null) {
+				deleteFromFatNode(key);
+			}else if(lazyDeletion) {
+				//Leave the node deficient, it is rebalanced later once it falls below the threshold
 				deleteFromFatNode(key);
+				queueIfUnderfull(this);
 			}else {
 				deleteWithMerge(key);
 			}
@@ -370,7 +1715,7 @@ public class bplustree {
 		//Display the external node
 		public void display(Queue<Node> nextLevel) {
 			for(int i = 0; i < keyNum; i++) {
-				System.out.print(keys[i] + "(" + values[i] + ")");
+				System.out.print(keyAt(i) + "(" + valueAt(i) + ")");
 				if(i != keyNum - 1)
 					System.out.print(",");
 			}
@@ -391,19 +1736,22 @@ public class bplustree {
 		
 		//Insert a key-value pair into an external node with the maximum key number
 		private void insertFull(int key, double value) {
+			metrics.leafSplits++;
 			ExternalNode sibling = new ExternalNode();
 			int index = getIndex(key);
-			if(index < MinKeyNum) {
-				System.arraycopy(keys, MinKeyNum - 1, sibling.keys, 0, keyNum - MinKeyNum + 1);
-				System.arraycopy(values, MinKeyNum - 1, sibling.values, 0, keyNum - MinKeyNum + 1);
-				sibling.keyNum = keyNum - MinKeyNum + 1;
-				keyNum = MinKeyNum - 1;
+			//Number of keys the node keeps, the new key included when it goes into this node
+			int keep = appending(index, keyNum) ? sequentialLeafKeep : MinLeafKeyNum;
+			if(index < keep) {
+				System.arraycopy(keys, keep - 1, sibling.keys, 0, keyNum - keep + 1);
+				System.arraycopy(values, keep - 1, sibling.values, 0, keyNum - keep + 1);
+				sibling.keyNum = keyNum - keep + 1;
+				keyNum = keep - 1;
 				insertNotFull(key, value);
 			}else {
-				System.arraycopy(keys, MinKeyNum, sibling.keys, 0, keyNum - MinKeyNum);
-				System.arraycopy(values, MinKeyNum, sibling.values, 0, keyNum - MinKeyNum);
-				sibling.keyNum = keyNum - MinKeyNum;
-				keyNum = MinKeyNum;
+				System.arraycopy(keys, keep, sibling.keys, 0, keyNum - keep);
+				System.arraycopy(values, keep, sibling.values, 0, keyNum - keep);
+				sibling.keyNum = keyNum - keep;
+				keyNum = keep;
 				sibling.insertNotFull(key, value);
 			}
 			//check next external node
@@ -416,6 +1764,7 @@ public class bplustree {
 			//check if the node to split is root
 			if(parent == null) {
 				InternalNode newRoot = new InternalNode();
+				metrics.rootSplits++;
 				newRoot.keyNum = 1;
 				newRoot.keys[0] = sibling.keys[0];
 				newRoot.children[0] = this;
@@ -429,14 +1778,182 @@ public class bplustree {
 			}
 		}
 		
-		//Delete a key from an external node whose key number is more than the minimum key number
-		private void deleteFromFatNode(int key) {
-			int index = -1;
-			for(int i = 0; i < keyNum; i++) {
-				if(keys[i] == key) {
-					index = i;
+		//Merge the sorted batch pairs sorted[from, to) into the node, sorted holds (key << 32 | position in values)
+		//A node which overflows keeps the first part and the rest is spread over new nodes after it
+		//Return whether the node was split
+		private boolean insertGroup(long[] sorted, int from, int to, double[] batchValues) {
+			inflate();
+			int total = keyNum + to - from;
+			if(total > MaxLeafKeyNum && mergeKeys.length < total) {
+				mergeKeys = new int[Math.max(total, 2 * mergeKeys.length)];
+				mergeValues = new double[mergeKeys.length];
+			}
+			int[] mergedKeys = total <= MaxLeafKeyNum ? keys : mergeKeys;
+			double[] mergedValues = total <= MaxLeafKeyNum ? values : mergeValues;
+			//Merge from the back so the node can be the destination, a new key goes after the equal keys of the node
+			//The pairs of the node between two new keys are moved as one run
+			int a = keyNum;
+			int i = total;
+			for(int b = to - 1; b >= from; b--) {
+				int key = (int)(sorted[b] >> 32);
+				int position = upperBound(keys, a, key);
+				i -= a - position;
+				System.arraycopy(keys, position, mergedKeys, i, a - position);
+				System.arraycopy(values, position, mergedValues, i, a - position);
+				a = position;
+				i--;
+				mergedKeys[i] = key;
+				mergedValues[i] = batchValues[(int)sorted[b]];
+			}
+			if(total <= MaxLeafKeyNum) {
+				keyNum = total;
+				return false;
+			}
+			System.arraycopy(keys, 0, mergedKeys, 0, a);
+			System.arraycopy(values, 0, mergedValues, 0, a);
+			//Cut the pairs into the fewest nodes which can hold them, the sizes differ by one at most
+			int pieces = (total + MaxLeafKeyNum - 1) / MaxLeafKeyNum;
+			int start = 0;
+			ExternalNode last = null;
+			for(int p = 0; p < pieces; p++) {
+				int size = total / pieces + (p < total % pieces ? 1 : 0);
+				ExternalNode node = p == 0 ? this : new ExternalNode();
+				System.arraycopy(mergedKeys, start, node.keys, 0, size);
+				System.arraycopy(mergedValues, start, node.values, 0, size);
+				node.keyNum = size;
+				start += size;
+				if(last != null)
+					last.addAfter(node);
+				last = node;
+			}
+			return true;
+		}
+		
+		//Link a new node after this one and insert it into the parent
+		private void addAfter(ExternalNode sibling) {
+			metrics.leafSplits++;
+			if(after != null) {
+				sibling.after = after;
+				after.pre = sibling;
+			}
+			after = sibling;
+			sibling.pre = this;
+			if(parent == null) {
+				InternalNode newRoot = new InternalNode();
+				metrics.rootSplits++;
+				newRoot.keyNum = 1;
+				newRoot.keys[0] = sibling.keys[0];
+				newRoot.children[0] = this;
+				parent = newRoot;
+				newRoot.children[1] = sibling;
+				sibling.parent = newRoot;
+				root = newRoot;
+			}else {
+				sibling.parent = parent;
+				parent.insert(sibling.keys[0], sibling);
+			}
+		}
+		
+		//Remove one occurrence of every key of sorted[from, to) which is in the node
+		//Like delete it removes the last of equal keys, the kept pairs are packed from the back
+		private void deleteGroup(int[] sorted, int from, int to) {
+			inflate();
+			int write = keyNum;
+			int b = to - 1;
+			for(int a = keyNum - 1; a >= 0; a--) {
+				while(b >= from && sorted[b] > keys[a]) {
+					b--;
+				}
+				if(b >= from && sorted[b] == keys[a]) {
+					if(valueIndex != null)
+						valueIndex.remove(values[a], keys[a]);
+					b--;
+					continue;
 				}
+				write--;
+				keys[write] = keys[a];
+				values[write] = values[a];
 			}
+			int kept = keyNum - write;
+			System.arraycopy(keys, write, keys, 0, kept);
+			System.arraycopy(values, write, values, 0, kept);
+			keyNum = kept;
+		}
+		
+		//Bring a node which lost several keys back to MinLeafKeyNum keys, indexOfParent is its position in the parent
+		//Like deleteWithMerge it borrows from the left sibling, then from the right one, and merges otherwise,
+		//but a borrow moves enough pairs to even out the two nodes
+		private void rebalance(int indexOfParent) {
+			ExternalNode left = indexOfParent != 0 ? (ExternalNode)parent.children[indexOfParent - 1] : null;
+			ExternalNode right = indexOfParent != parent.keyNum ? (ExternalNode)parent.children[indexOfParent + 1] : null;
+			if(left != null)
+				left.inflate();
+			if(right != null)
+				right.inflate();
+			if(left != null && left.keyNum + keyNum >= 2 * MinLeafKeyNum) {
+				//Borrow from the left sibling
+				metrics.borrowsFromLeft++;
+				int move = (left.keyNum + keyNum) / 2 - keyNum;
+				System.arraycopy(keys, 0, keys, move, keyNum);
+				System.arraycopy(values, 0, values, move, keyNum);
+				System.arraycopy(left.keys, left.keyNum - move, keys, 0, move);
+				System.arraycopy(left.values, left.keyNum - move, values, 0, move);
+				left.keyNum -= move;
+				keyNum += move;
+				parent.keys[indexOfParent - 1] = keys[0];
+			}else if(right != null && right.keyNum + keyNum >= 2 * MinLeafKeyNum) {
+				//Borrow from the right sibling
+				metrics.borrowsFromRight++;
+				int move = (right.keyNum + keyNum) / 2 - keyNum;
+				System.arraycopy(right.keys, 0, keys, keyNum, move);
+				System.arraycopy(right.values, 0, values, keyNum, move);
+				System.arraycopy(right.keys, move, right.keys, 0, right.keyNum - move);
+				System.arraycopy(right.values, move, right.values, 0, right.keyNum - move);
+				right.keyNum -= move;
+				keyNum += move;
+				parent.keys[indexOfParent] = right.keys[0];
+			}else {
+				InternalNode parent = this.parent;
+				if(indexOfParent == 0)
+					absorb(right, 0);
+				else
+					left.absorb(this, indexOfParent - 1);
+				//Parent is deficient
+				if(parent.keyNum < MinKeyNum)
+					parent.borrowOrMergeFromSibling();
+			}
+		}
+		
+		//Return the position of the node among the children of its parent,
+		//or -1 for the root and for a node which was merged into a sibling
+		int indexInParent() {
+			if(parent == null)
+				return -1;
+			for(int i = 0; i <= parent.keyNum; i++) {
+				if(parent.children[i] == this)
+					return i;
+			}
+			return -1;
+		}
+		
+		//Move every pair of the right sibling into this node, then unlink the sibling
+		//and remove it and the separator at index from the parent
+		private void absorb(ExternalNode sibling, int index) {
+			metrics.leafMerges++;
+			System.arraycopy(sibling.keys, 0, keys, keyNum, sibling.keyNum);
+			System.arraycopy(sibling.values, 0, values, keyNum, sibling.keyNum);
+			keyNum += sibling.keyNum;
+			if(sibling.after != null)
+				sibling.after.pre = this;
+			after = sibling.after;
+			System.arraycopy(parent.keys, index + 1, parent.keys, index, parent.keyNum - index - 1);
+			System.arraycopy(parent.children, index + 2, parent.children, index + 1, parent.keyNum - index - 1);
+			parent.keyNum--;
+		}
+		
+		//Delete a key from an external node whose key number is more than the minimum key number
+		private void deleteFromFatNode(int key) {
+			int index = indexOf(key);
 			if(index == -1)
 				return;
 			System.arraycopy(keys, index + 1, keys, index, keyNum - index - 1);
@@ -446,12 +1963,7 @@ public class bplustree {
 		
 		//Delete a key from an external node with the minimum key number
 		private void deleteWithMerge(int key) {
-			int index = -1;
-			for(int i = 0; i < keyNum; i++) {
-				if(keys[i] == key) {
-					index = i;
-				}
-			}
+			int index = indexOf(key);
 			if(index == -1)
 				return;
 			int indexOfParent = 0;
@@ -461,16 +1973,20 @@ public class bplustree {
 					break;
 				}
 			}
-			if(indexOfParent != 0 && parent.children[indexOfParent - 1].keyNum > MinKeyNum) {
+			if(indexOfParent != 0 && parent.children[indexOfParent - 1].keyNum > MinLeafKeyNum) {
 				//Borrow an element from the left sibling
+				metrics.borrowsFromLeft++;
 				ExternalNode sibling = (ExternalNode)parent.children[indexOfParent - 1];
+				sibling.inflate();
 				deleteFromFatNode(key);
 				insertNotFull(sibling.keys[sibling.keyNum - 1], sibling.values[sibling.keyNum - 1]);
 				sibling.keyNum--;
 				parent.keys[indexOfParent - 1] = keys[0];
-			}else if(indexOfParent != parent.keyNum && parent.children[indexOfParent + 1].keyNum > MinKeyNum) {
+			}else if(indexOfParent != parent.keyNum && parent.children[indexOfParent + 1].keyNum > MinLeafKeyNum) {
 				//Borrow an element from the right sibling
+				metrics.borrowsFromRight++;
 				ExternalNode sibling = (ExternalNode)parent.children[indexOfParent + 1];
+				sibling.inflate();
 				deleteFromFatNode(key);
 				insertNotFull(sibling.keys[0], sibling.values[0]);
 				System.arraycopy(sibling.keys, 1, sibling.keys, 0, sibling.keyNum - 1);
@@ -479,9 +1995,11 @@ public class bplustree {
 				parent.keys[indexOfParent] = sibling.keys[0];
 			}else {
 				//Start Merge
+				metrics.leafMerges++;
 				if(indexOfParent == 0) {
 					//Merge with the right sibling
 					ExternalNode sibling = (ExternalNode)parent.children[indexOfParent + 1];
+					sibling.inflate();
 					deleteFromFatNode(key);
 					System.arraycopy(sibling.keys, 0, keys, keyNum, sibling.keyNum);
 					System.arraycopy(sibling.values, 0, values, keyNum, sibling.keyNum);
@@ -494,6 +2012,7 @@ public class bplustree {
 					parent.keyNum--;
 				}else {
 					ExternalNode sibling = (ExternalNode)parent.children[indexOfParent - 1];
+					sibling.inflate();
 					deleteFromFatNode(key);
 					System.arraycopy(keys, 0, keys, sibling.keyNum, keyNum);
 					System.arraycopy(values, 0, values, sibling.keyNum, keyNum);
@@ -514,12 +2033,64 @@ public class bplustree {
 		}
 		
 		private int getIndex(int key) {
+			if(packed != null)
+				return packed.upperBound(key);
+			return upperBound(keys, keyNum, key);
+		}
+		
+		int keyAt(int i) {
+			return packed == null ? keys[i] : packed.key(i);
+		}
+		
+		double valueAt(int i) {
+			return packed == null ? values[i] : packed.value(i);
+		}
+		
+		//Replace the arrays of the node with compressed ones sized to its pairs
+		void compact() {
+			if(packed != null || keyNum == 0)
+				return;
+			packed = new CompressedLeaf(keys, values, keyNum);
+			keys = null;
+			values = null;
+		}
+		
+		//Go back to full arrays before the node is modified
+		void inflate() {
+			if(packed == null)
+				return;
+			keys = new int[MaxLeafKeyNum];
+			values = new double[MaxLeafKeyNum];
 			for(int i = 0; i < keyNum; i++) {
-				if(key < keys[i]) {
-					return i;
-				}
+				keys[i] = packed.key(i);
+				values[i] = packed.value(i);
 			}
-			return keyNum;
+			packed = null;
+		}
+		
+		//Return the position of the first key which is not smaller than the given key
+		private int lowerIndex(int key) {
+			if(key == Integer.MIN_VALUE)
+				return 0;
+			return getIndex(key - 1);
+		}
+		
+		//Return the position of the first of the equal keys, or -1 when the key doesn't exist
+		//Point lookups answer with the first pair of a key, like the scan of the original search did
+		private int firstIndexOf(int key) {
+			int index = lowerIndex(key);
+			if(index < keyNum && keyAt(index) == key)
+				return index;
+			return -1;
+		}
+		
+		//Return the position of the last of the equal keys, or -1 when the key doesn't exist
+		//Deletes remove the last pair of a key, like the original delete did
+		private int indexOf(int key) {
+			int index = getIndex(key) - 1;
+			if(index >= 0 && keyAt(index) == key)
+				return index;
+			return -1;
 		}
 		
 	}
@@ -590,12 +2161,13 @@ public class bplustree {
 		tree.displayWholeTree();
 	}
 	
-	private static String[] instructions = {"Initialize", "Insert", "Search", "Delete"};
+	final static String[] instructions = {"Initialize", "Insert", "Search", "Delete"};
 	
-	private final static String OUTPUT_FILE = "output_file.txt";
+	final static String OUTPUT_FILE = "output_file.txt";
 	
 	//Read the input file, create an m way B+ tree
 	//Then perform all the instructions and write the output in output_file.txt
+	//This reads one String per line, bplustreeingest does the same without allocating per line
 	public static void initialize(String fileAddress) throws IOException {
 		File input = new File(fileAddress);
 		File output = new File(OUTPUT_FILE);
@@ -606,31 +2178,9 @@ public class bplustree {
 			int order = Integer.parseInt(line.substring(instructions[0].length() + 1, line.length() - 1));
 			bplustree tree = new bplustree(order);
 			while((line = br.readLine()) != null) {
-				if(line.length() > instructions[1].length() && line.substring(0, instructions[1].length()).equals(instructions[1])) {
-					//Insert(key,value)
-					String[] keyValuePair = line.substring(line.indexOf("(") + 1, line.length() - 1).split(",");
-					int key = Integer.parseInt(keyValuePair[0].trim());
-					double value = Double.parseDouble(keyValuePair[1].trim());
-					tree.insert(key, value);
-				}else if(line.length() > instructions[2].length() && line.substring(0, instructions[2].length()).equals(instructions[2])) {
-					if(line.contains(",")) {
-						//Search(startKey, endKey)
-						String[] keyPair = line.substring(line.indexOf("(") + 1, line.length() - 1).split(",");
-						int startKey = Integer.parseInt(keyPair[0].trim());
-						int endKey = Integer.parseInt(keyPair[1].trim());
-						String outputLine = tree.search(startKey, endKey);
-						bw.write(outputLine + "\r\n");
-					}else {
-						//Search(key)
-						String key = line.substring(line.indexOf("(") + 1, line.length() - 1).trim();
-						String outputLine = tree.search(Integer.parseInt(key));
-						bw.write(outputLine + "\r\n");
-					}
-				}else if(line.length() > instructions[3].length() && line.substring(0, instructions[3].length()).equals(instructions[3])) {
-					//Delete(key)
-					int key = Integer.parseInt(line.substring(line.indexOf("(") + 1, line.length() - 1).trim());
-					tree.delete(key);
-				}
+				String outputLine = execute(tree, line);
+				if(outputLine != null)
+					bw.write(outputLine + "\r\n");
 			}
 		}
 		br.close();
@@ -638,9 +2188,38 @@ public class bplustree {
 		bw.close();
 	}
 	
+	//Perform the instruction of one line of the input file
+	//Return the output line of a search, or null for other instructions and unknown lines
+	static String execute(bplustree tree, String line) {
+		if(line.length() > instructions[1].length() && line.substring(0, instructions[1].length()).equals(instructions[1])) {
+			//Insert(key,value)
+			String[] keyValuePair = line.substring(line.indexOf("(") + 1, line.length() - 1).split(",");
+			int key = Integer.parseInt(keyValuePair[0].trim());
+			double value = Double.parseDouble(keyValuePair[1].trim());
+			tree.insert(key, value);
+		}else if(line.length() > instructions[2].length() && line.substring(0, instructions[2].length()).equals(instructions[2])) {
+			if(line.contains(",")) {
+				//Search(startKey, endKey)
+				String[] keyPair = line.substring(line.indexOf("(") + 1, line.length() - 1).split(",");
+				int startKey = Integer.parseInt(keyPair[0].trim());
+				int endKey = Integer.parseInt(keyPair[1].trim());
+				return tree.search(startKey, endKey);
+			}else {
+				//Search(key)
+				String key = line.substring(line.indexOf("(") + 1, line.length() - 1).trim();
+				return tree.search(Integer.parseInt(key));
+			}
+		}else if(line.length() > instructions[3].length() && line.substring(0, instructions[3].length()).equals(instructions[3])) {
+			//Delete(key)
+			int key = Integer.parseInt(line.substring(line.indexOf("(") + 1, line.length() - 1).trim());
+			tree.delete(key);
+		}
+		return null;
+	}
+	
 	public static void main(String[] args) {
 		try {
-			initialize(args[0]);
+			bplustreeingest.initialize(args[0]);
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
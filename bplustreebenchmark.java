@@ -0,0 +1,939 @@
+import java.io.*;
+import java.lang.management.*;
+import java.net.*;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.*;
+
+//Microbenchmarks for the B+ tree
+//Run with: java bplustreebenchmark [search|workload|batch|multiget|cache|valueindex|memory|fill|snapshot|durable|aggregate|sharded|server]
+//[workload sizes...]
+//Every result is the best of several runs after a warm-up, which is enough to compare orders and structures
+public class bplustreebenchmark {
+
+	private final static int[] ORDERS = {4, 8, 16, 32, 64, 128, 256, 512};
+
+	private final static int WARMUP_ROUNDS = 3;
+	private final static int MEASURE_ROUNDS = 5;
+
+	//Workload suite settings, the sizes can be replaced on the command line
+	private final static int[] SUITE_ORDERS = {3, 4, 8, 16, 32, 64, 128, 256, 512};
+	private final static int[] SUITE_SIZES = {10000, 100000, 1000000};
+	private final static int SUITE_PROBES = 1 << 18;
+	private final static int RANGE_PROBES = 1 << 14;
+	//A range search covers this many keys of the data set
+	private final static int RANGE_WIDTH = 100;
+	//Skew of the Zipfian distribution, the value used by YCSB
+	private final static double ZIPF_THETA = 0.99;
+
+	//How the keys of a workload are picked
+	//SEQUENTIAL walks the keys in ascending order, UNIFORM picks any key with the same probability
+	//and ZIPFIAN picks a few hot keys most of the time, the hot keys are scattered over the key space
+	enum Distribution {SEQUENTIAL, UNIFORM, ZIPFIAN}
+
+	//Operations measured by the workload suite, implemented by the B+ tree and by the baselines
+	//Results are returned so the work can be folded into the sink
+	private interface Target {
+		void insert(int key, double value);
+		long search(int key);
+		long search(int startKey, int endKey);
+		void delete(int key);
+	}
+
+	//Results are folded into this field so the JIT can't drop the measured work
+	private static volatile long sink;
+
+	//Compare the LINEAR and BINARY node search strategies at different orders
+	//The node benchmark searches one full node, the tree benchmark performs point lookups on a whole tree
+	private static void searchStrategyCrossover() {
+		System.out.println("Node search (ns/op)");
+		System.out.printf("%8s %10s %10s%n", "order", "LINEAR", "BINARY");
+		for(int order : ORDERS) {
+			int[] keys = new int[order - 1];
+			for(int i = 0; i < keys.length; i++) {
+				keys[i] = i * 2;
+			}
+			int[] probes = randomKeys(1 << 16, 2 * order, 1);
+			double linear = measure(() -> nodeSearch(keys, probes, bplustree.SearchStrategy.LINEAR), probes.length);
+			double binary = measure(() -> nodeSearch(keys, probes, bplustree.SearchStrategy.BINARY), probes.length);
+			System.out.printf("%8d %10.2f %10.2f%n", order, linear, binary);
+		}
+		System.out.println();
+		int size = 1000000;
+		int[] inserts = randomKeys(size, Integer.MAX_VALUE, 2);
+		int[] probes = new int[1 << 20];
+		Random random = new Random(3);
+		for(int i = 0; i < probes.length; i++) {
+			probes[i] = inserts[random.nextInt(size)];
+		}
+		System.out.println("Tree search with " + size + " keys (ns/op)");
+		System.out.printf("%8s %10s %10s %10s%n", "order", "LINEAR", "BINARY", "HYBRID");
+		for(int order : ORDERS) {
+			double linear = measureTree(order, bplustree.SearchStrategy.LINEAR, inserts, probes);
+			double binary = measureTree(order, bplustree.SearchStrategy.BINARY, inserts, probes);
+			double hybrid = measureTree(order, bplustree.SearchStrategy.HYBRID, inserts, probes);
+			System.out.printf("%8d %10.2f %10.2f %10.2f%n", order, linear, binary, hybrid);
+		}
+	}
+
+	private static void nodeSearch(int[] keys, int[] probes, bplustree.SearchStrategy strategy) {
+		long sum = 0;
+		if(strategy == bplustree.SearchStrategy.LINEAR) {
+			for(int probe : probes) {
+				sum += bplustree.linearUpperBound(keys, keys.length, probe);
+			}
+		}else {
+			for(int probe : probes) {
+				sum += bplustree.binaryUpperBound(keys, keys.length, probe);
+			}
+		}
+		sink += sum;
+	}
+
+	private static double measureTree(int order, bplustree.SearchStrategy strategy, int[] inserts, int[] probes) {
+		bplustree tree = new bplustree(order, strategy);
+		for(int key : inserts) {
+			tree.insert(key, key);
+		}
+		return measure(() -> {
+			long sum = 0;
+			for(int probe : probes) {
+				sum += tree.search(probe).length();
+			}
+			sink += sum;
+		}, probes.length);
+	}
+
+	//Measure insert, search(int), search(int,int) and delete for every order, distribution and size,
+	//against TreeMap and ConcurrentSkipListMap holding the same keys
+	//The data set of a size n is the keys 0, 2, ..., 2(n-1), the distribution decides the order in which
+	//they are inserted and deleted and which of them the searches look for
+	private static void workloadSuite(int[] sizes) {
+		for(int size : sizes) {
+			for(Distribution distribution : Distribution.values()) {
+				int[] inserts = keySequence(distribution, size, size, 5);
+				int[] deletes = keySequence(distribution, size, size, 6);
+				int[] probes = keySequence(distribution, size, SUITE_PROBES, 7);
+				int[] ranges = keySequence(distribution, size, RANGE_PROBES, 8);
+				System.out.println("Workload with " + size + " keys, " + distribution + " (ns/op)");
+				System.out.printf("%24s %10s %10s %10s %10s%n", "structure", "insert", "search", "range", "delete");
+				for(int order : SUITE_ORDERS) {
+					workload("bplustree order " + order, () -> bplustreeTarget(order), inserts, probes, ranges, deletes);
+				}
+				workload("TreeMap", () -> mapTarget(new TreeMap<>()), inserts, probes, ranges, deletes);
+				workload("ConcurrentSkipListMap", () -> mapTarget(new ConcurrentSkipListMap<>()), inserts, probes, ranges, deletes);
+				System.out.println();
+			}
+		}
+	}
+
+	private static void workload(String name, Supplier<Target> factory, int[] inserts, int[] probes, int[] ranges, int[] deletes) {
+		Supplier<Target> filled = () -> {
+			Target target = factory.get();
+			for(int key : inserts) {
+				target.insert(key, key);
+			}
+			return target;
+		};
+		double insert = measure(factory, target -> {
+			for(int key : inserts) {
+				target.insert(key, key);
+			}
+		}, inserts.length);
+		Target target = filled.get();
+		double search = measure(() -> target, t -> {
+			long sum = 0;
+			for(int probe : probes) {
+				sum += t.search(probe);
+			}
+			sink += sum;
+		}, probes.length);
+		double range = measure(() -> target, t -> {
+			long sum = 0;
+			for(int probe : ranges) {
+				sum += t.search(probe, probe + 2 * (RANGE_WIDTH - 1));
+			}
+			sink += sum;
+		}, ranges.length);
+		double delete = measure(filled, t -> {
+			for(int key : deletes) {
+				t.delete(key);
+			}
+		}, deletes.length);
+		System.out.printf("%24s %10.1f %10.1f %10.1f %10.1f%n", name, insert, search, range, delete);
+	}
+
+	private static Target bplustreeTarget(int order) {
+		bplustree tree = new bplustree(order);
+		return new Target() {
+			public void insert(int key, double value) {
+				tree.insert(key, value);
+			}
+
+			public long search(int key) {
+				return tree.search(key).length();
+			}
+
+			public long search(int startKey, int endKey) {
+				return tree.search(startKey, endKey, (key, value) -> {});
+			}
+
+			public void delete(int key) {
+				tree.delete(key);
+			}
+		};
+	}
+
+	private static Target mapTarget(NavigableMap<Integer, Double> map) {
+		return new Target() {
+			public void insert(int key, double value) {
+				map.put(key, value);
+			}
+
+			public long search(int key) {
+				Double value = map.get(key);
+				return value == null ? 0 : 1;
+			}
+
+			public long search(int startKey, int endKey) {
+				long count = 0;
+				for(Double value : map.subMap(startKey, true, endKey, true).values()) {
+					count++;
+				}
+				return count;
+			}
+
+			public void delete(int key) {
+				map.remove(key);
+			}
+		};
+	}
+
+	//Keys of the data set of the given size in the order the distribution picks them
+	//Sequences as long as the data set visit every key once: SEQUENTIAL in ascending order, UNIFORM shuffled,
+	//ZIPFIAN in the order of their first appearance in a Zipfian stream, so hot keys come first
+	//Longer or shorter sequences draw keys independently, SEQUENTIAL wraps around
+	private static int[] keySequence(Distribution distribution, int size, int count, long seed) {
+		Random random = new Random(seed);
+		int[] keys = new int[count];
+		if(distribution == Distribution.SEQUENTIAL) {
+			for(int i = 0; i < count; i++) {
+				keys[i] = 2 * (i % size);
+			}
+			return keys;
+		}
+		//Scatter the ranks of the Zipfian distribution over the key space
+		int[] scatter = new int[size];
+		for(int i = 0; i < size; i++) {
+			scatter[i] = i;
+		}
+		shuffle(scatter, random);
+		if(count == size) {
+			if(distribution == Distribution.UNIFORM) {
+				for(int i = 0; i < size; i++) {
+					keys[i] = 2 * scatter[i];
+				}
+				return keys;
+			}
+			ZipfianGenerator zipf = new ZipfianGenerator(size, random);
+			boolean[] used = new boolean[size];
+			int filled = 0;
+			for(int i = 0; i < size; i++) {
+				int index = scatter[zipf.next()];
+				if(!used[index]) {
+					used[index] = true;
+					keys[filled++] = 2 * index;
+				}
+			}
+			int rest = filled;
+			for(int i = 0; i < size; i++) {
+				if(!used[i])
+					keys[filled++] = 2 * i;
+			}
+			shuffleRange(keys, rest, size, random);
+			return keys;
+		}
+		ZipfianGenerator zipf = distribution == Distribution.ZIPFIAN ? new ZipfianGenerator(size, random) : null;
+		for(int i = 0; i < count; i++) {
+			keys[i] = 2 * (zipf == null ? random.nextInt(size) : scatter[zipf.next()]);
+		}
+		return keys;
+	}
+
+	private static void shuffle(int[] values, Random random) {
+		shuffleRange(values, 0, values.length, random);
+	}
+
+	private static void shuffleRange(int[] values, int from, int to, Random random) {
+		for(int i = to - 1; i > from; i--) {
+			int j = from + random.nextInt(i - from + 1);
+			int tmp = values[i];
+			values[i] = values[j];
+			values[j] = tmp;
+		}
+	}
+
+	//Ranks in [0, size) where rank r is picked with a probability proportional to 1/(r+1)^ZIPF_THETA
+	//This is the rejection-free method of Gray et al. used by YCSB
+	private static class ZipfianGenerator {
+
+		private final int size;
+		private final Random random;
+		private final double alpha;
+		private final double zetan;
+		private final double eta;
+
+		ZipfianGenerator(int size, Random random){
+			this.size = size;
+			this.random = random;
+			double zeta2 = 1 + Math.pow(0.5, ZIPF_THETA);
+			double zeta = 0;
+			for(int i = 1; i <= size; i++) {
+				zeta += 1 / Math.pow(i, ZIPF_THETA);
+			}
+			this.zetan = zeta;
+			this.alpha = 1 / (1 - ZIPF_THETA);
+			this.eta = (1 - Math.pow(2.0 / size, 1 - ZIPF_THETA)) / (1 - zeta2 / zetan);
+		}
+
+		int next() {
+			double u = random.nextDouble();
+			double uz = u * zetan;
+			if(uz < 1)
+				return 0;
+			if(uz < 1 + Math.pow(0.5, ZIPF_THETA))
+				return Math.min(1, size - 1);
+			return Math.min(size - 1, (int)(size * Math.pow(eta * u - eta + 1, alpha)));
+		}
+
+	}
+
+	//Compare point lookups one by one, returning a String or a double, with searchMany on random probes
+	//The tree is large enough that most nodes on the way down miss the cache
+	private static void multiGet(int size) {
+		int[] keys = randomKeys(size, Integer.MAX_VALUE, 10);
+		int[] probes = new int[1 << 20];
+		Random random = new Random(11);
+		for(int i = 0; i < probes.length; i++) {
+			probes[i] = random.nextInt(4) == 0 ? random.nextInt() : keys[random.nextInt(size)];
+		}
+		int[] sortedProbes = probes.clone();
+		Arrays.sort(sortedProbes);
+		double[] out = new double[probes.length];
+		boolean[] found = new boolean[probes.length];
+		System.out.println("Point lookups with " + size + " keys (ns/lookup)");
+		System.out.printf("%8s %10s %12s %12s %14s%n", "order", "search", "searchValue", "searchMany", "sorted probes");
+		for(int order : new int[] {8, 16, 64, 256}) {
+			bplustree tree = new bplustree(order);
+			for(int key : keys) {
+				tree.insert(key, key);
+			}
+			double search = measure(() -> {
+				long sum = 0;
+				for(int probe : probes) {
+					sum += tree.search(probe).length();
+				}
+				sink += sum;
+			}, probes.length);
+			double searchValue = measure(() -> {
+				double sum = 0;
+				for(int probe : probes) {
+					sum += tree.searchValue(probe, 0);
+				}
+				sink += (long)sum;
+			}, probes.length);
+			double searchMany = measure(() -> sink += tree.searchMany(probes, out, found), probes.length);
+			double sorted = measure(() -> sink += tree.searchMany(sortedProbes, out, found), probes.length);
+			System.out.printf("%8d %10.1f %12.1f %12.1f %14.1f%n", order, search, searchValue, searchMany, sorted);
+		}
+		System.out.println();
+	}
+
+	//Point lookups of Zipfian keys without a cache and with caches of different capacities
+	private static void cachedLookups(int size) {
+		int[] keys = keySequence(Distribution.UNIFORM, size, size, 15);
+		int[] probes = keySequence(Distribution.ZIPFIAN, size, 1 << 20, 16);
+		bplustree tree = new bplustree(64);
+		for(int key : keys) {
+			tree.insert(key, key);
+		}
+		System.out.println("Zipfian point lookups with " + size + " keys (ns/lookup)");
+		System.out.printf("%10s %10s %12s %10s%n", "cache", "search", "searchValue", "hit ratio");
+		for(int capacity : new int[] {0, 1 << 10, 1 << 14, 1 << 18}) {
+			tree.setCache(capacity);
+			double search = measure(() -> {
+				long sum = 0;
+				for(int probe : probes) {
+					sum += tree.search(probe).length();
+				}
+				sink += sum;
+			}, probes.length);
+			double searchValue = measure(() -> {
+				double sum = 0;
+				for(int probe : probes) {
+					sum += tree.searchValue(probe, 0);
+				}
+				sink += (long)sum;
+			}, probes.length);
+			double hitRatio = capacity == 0 ? 0 : tree.cache().hitRatio();
+			System.out.printf("%10d %10.1f %12.1f %10.3f%n", capacity, search, searchValue, hitRatio);
+		}
+		tree.setCache(0);
+		System.out.println();
+	}
+
+	//Sum the values of half of the keys by parsing the String of a range search, with a visitor,
+	//and with aggregate on one worker and on every core
+	private static void rangeAggregate(int size) {
+		int[] keys = new int[size];
+		double[] values = new double[size];
+		for(int i = 0; i < size; i++) {
+			keys[i] = i;
+			values[i] = i % 1000;
+		}
+		bplustree tree = new bplustree(128, keys, values, 1);
+		int startKey = size / 4;
+		int endKey = startKey + size / 2 - 1;
+		ForkJoinPool single = new ForkJoinPool(1);
+		int cores = ForkJoinPool.commonPool().getParallelism();
+		System.out.println("Sum of " + (size / 2) + " values out of " + size + " keys (ms/aggregation)");
+		System.out.printf("%12s %10s %12s %14s%n", "String", "visitor", "1 worker", cores + " workers");
+		double parse = measure(() -> {
+			double sum = 0;
+			for(String value : tree.search(startKey, endKey).split(",")) {
+				sum += Double.parseDouble(value);
+			}
+			sink += (long)sum;
+		}, 1) / 1e6;
+		double visitor = measure(() -> {
+			double[] sum = new double[1];
+			tree.search(startKey, endKey, (key, value) -> sum[0] += value);
+			sink += (long)sum[0];
+		}, 1) / 1e6;
+		double oneWorker = measure(() -> sink += (long)tree.aggregate(startKey, endKey, single).sum, 1) / 1e6;
+		double allWorkers = measure(() -> sink += (long)tree.aggregate(startKey, endKey).sum, 1) / 1e6;
+		System.out.printf("%12.1f %10.1f %12.1f %14.1f%n", parse, visitor, oneWorker, allWorkers);
+		single.shutdown();
+		System.out.println();
+	}
+
+	//Insert throughput of writers threads sharing one bplustree behind a lock, and sharing a shardedbplustree
+	private static void shardedWrites(int perWriter) throws InterruptedException {
+		System.out.println("Inserts of " + perWriter + " uniform keys per writer (ns/insert)");
+		System.out.printf("%8s %12s %12s%n", "writers", "locked", "sharded");
+		for(int writers : new int[] {1, 2, 4, 8}) {
+			bplustree locked = new bplustree(64);
+			double lockedTime = timeWriters(writers, perWriter, key -> {
+				synchronized(locked) {
+					locked.insert(key, key);
+				}
+			}, () -> {});
+			shardedbplustree sharded = new shardedbplustree(64, writers, 4 * writers);
+			double shardedTime = timeWriters(writers, perWriter, key -> sharded.insert(key, key), sharded::flush);
+			sharded.close();
+			System.out.printf("%8d %12.1f %12.1f%n", writers, lockedTime, shardedTime);
+		}
+		System.out.println();
+	}
+	
+	private static double timeWriters(int writers, int perWriter, IntConsumer insert, Runnable finish) throws InterruptedException {
+		Thread[] threads = new Thread[writers];
+		for(int w = 0; w < writers; w++) {
+			int[] keys = randomKeys(perWriter, Integer.MAX_VALUE, w);
+			threads[w] = new Thread(() -> {
+				for(int key : keys) {
+					insert.accept(key);
+				}
+			});
+		}
+		long start = System.nanoTime();
+		for(Thread thread : threads) {
+			thread.start();
+		}
+		for(Thread thread : threads) {
+			thread.join();
+		}
+		finish.run();
+		return (double)(System.nanoTime() - start) / ((long)writers * perWriter);
+	}
+
+	//Compare inserting and deleting key by key with insertBatch and deleteBatch on batches of batchSize uniform keys
+	private static void batchThroughput(int size, int batchSize) {
+		int order = 64;
+		int[] keys = randomKeys(size, Integer.MAX_VALUE, 9);
+		int batches = (size + batchSize - 1) / batchSize;
+		int[][] keyBatches = new int[batches][];
+		double[][] valueBatches = new double[batches][];
+		for(int b = 0; b < batches; b++) {
+			keyBatches[b] = Arrays.copyOfRange(keys, b * batchSize, Math.min(size, (b + 1) * batchSize));
+			valueBatches[b] = new double[keyBatches[b].length];
+			for(int i = 0; i < keyBatches[b].length; i++) {
+				valueBatches[b][i] = keyBatches[b][i];
+			}
+		}
+		Supplier<bplustree> empty = () -> new bplustree(order);
+		Supplier<bplustree> filled = () -> {
+			bplustree tree = new bplustree(order);
+			for(int b = 0; b < batches; b++) {
+				tree.insertBatch(keyBatches[b], valueBatches[b]);
+			}
+			return tree;
+		};
+		double insert = measure(empty, tree -> {
+			for(int key : keys) {
+				tree.insert(key, key);
+			}
+		}, size);
+		double insertBatch = measure(empty, tree -> {
+			for(int b = 0; b < batches; b++) {
+				tree.insertBatch(keyBatches[b], valueBatches[b]);
+			}
+		}, size);
+		double delete = measure(filled, tree -> {
+			for(int key : keys) {
+				tree.delete(key);
+			}
+		}, size);
+		double deleteBatch = measure(filled, tree -> {
+			for(int b = 0; b < batches; b++) {
+				tree.deleteBatch(keyBatches[b]);
+			}
+		}, size);
+		System.out.println("Batches of " + batchSize + " keys, " + size + " keys, order " + order + " (ns/key)");
+		System.out.printf("%10s %12s %10s %12s%n", "insert", "insertBatch", "delete", "deleteBatch");
+		System.out.printf("%10.1f %12.1f %10.1f %12.1f%n", insert, insertBatch, delete, deleteBatch);
+		System.out.println();
+	}
+
+	//Compare the heap footprint and the garbage collection cost of the object nodes of bplustree
+	//with the off-heap arena of pagedbplustree holding the same pairs
+	//The full collection with the tree alive shows the pause the live nodes add to every marking of the old generation
+	private static void offHeapFootprint(int size) throws java.io.IOException {
+		int order = 64;
+		int[] keys = randomKeys(size, Integer.MAX_VALUE, 4);
+		System.out.println("Footprint with " + size + " keys and order " + order);
+		System.out.printf("%10s %12s %12s %10s %10s %12s%n", "layout", "heap MiB", "direct MiB", "GCs", "GC ms", "full GC ms");
+
+		long baseline = usedHeap();
+		long[] gc = gcCounters();
+		bplustree tree = new bplustree(order);
+		for(int key : keys) {
+			tree.insert(key, key);
+		}
+		long[] built = gcCounters();
+		long heap = usedHeap() - baseline;
+		System.out.printf("%10s %12.1f %12.1f %10d %10d %12d%n", "objects", heap / 1048576.0, 0.0,
+				built[0] - gc[0], built[1] - gc[1], fullGcMillis());
+		sink += tree.search(keys[0]).length();
+		tree = null;
+
+		baseline = usedHeap();
+		gc = gcCounters();
+		pagedbplustree arena = new pagedbplustree(order);
+		for(int key : keys) {
+			arena.insert(key, key);
+		}
+		built = gcCounters();
+		heap = usedHeap() - baseline;
+		long direct = ((pagedbplustree.ArenaPageStore)arena.pageStore()).reservedBytes();
+		System.out.printf("%10s %12.1f %12.1f %10d %10d %12d%n", "arena", heap / 1048576.0, direct / 1048576.0,
+				built[0] - gc[0], built[1] - gc[1], fullGcMillis());
+		sink += arena.search(keys[0]).length();
+		arena.close();
+	}
+
+	//Fill factor, heap and full scan time after inserting ascending and shuffled keys one by one,
+	//with splits in the middle and right-biased splits, and with external nodes larger than the internal ones
+	private static void splitFill(int size) {
+		int[] ascending = new int[size];
+		for(int i = 0; i < size; i++) {
+			ascending[i] = i;
+		}
+		int[] shuffled = ascending.clone();
+		shuffle(shuffled, new Random(14));
+		System.out.println("Fill factor after " + size + " inserts one by one");
+		System.out.printf("%10s %6s %6s %6s %10s %10s %10s %10s%n", "keys", "order", "leaf", "split", "leaf fill", "inner fill", "heap MiB", "scan ms");
+		int[][] orders = {{64, 64}, {16, 256}};
+		for(int[] order : orders) {
+			for(double fill : new double[] {0, 0.9}) {
+				splitFill("ascending", ascending, order[0], order[1], fill);
+				splitFill("shuffled", shuffled, order[0], order[1], fill);
+			}
+		}
+		System.out.println();
+	}
+
+	private static void splitFill(String name, int[] keys, int order, int leafOrder, double fill) {
+		long baseline = usedHeap();
+		bplustree tree = new bplustree(order, leafOrder);
+		tree.setSequentialSplitFill(fill);
+		for(int key : keys) {
+			tree.insert(key, key);
+		}
+		long heap = usedHeap() - baseline;
+		bplustreemetrics.Snapshot snapshot = tree.metricsSnapshot();
+		double scan = measure(() -> {
+			double[] sum = new double[1];
+			tree.search(Integer.MIN_VALUE, Integer.MAX_VALUE, (key, value) -> sum[0] += value);
+			sink += (long)sum[0];
+		}, 1) / 1e6;
+		System.out.printf("%10s %6d %6d %6s %10.3f %10.3f %10.1f %10.1f%n", name, order, leafOrder, fill == 0 ? "middle" : "right",
+				snapshot.leafFillFactor(), snapshot.internalFillFactor(), heap / 1048576.0, scan);
+	}
+
+	//Heap taken by a tree before and after compact, for random keys with random doubles
+	//and for a dense key range whose values repeat
+	private static void compactFootprint(int size) {
+		int order = 64;
+		int[] randomKeys = randomKeys(size, Integer.MAX_VALUE, 12);
+		double[] randomValues = new double[size];
+		int[] denseKeys = new int[size];
+		double[] denseValues = new double[size];
+		Random random = new Random(13);
+		for(int i = 0; i < size; i++) {
+			randomValues[i] = random.nextDouble();
+			denseKeys[i] = 3 * i + random.nextInt(3);
+			denseValues[i] = random.nextInt(100) * 0.25;
+		}
+		shuffle(denseKeys, random);
+		System.out.println("Footprint of compact with " + size + " keys and order " + order);
+		System.out.printf("%8s %12s %12s %8s%n", "data", "heap MiB", "compact MiB", "ratio");
+		compactFootprint("random", order, randomKeys, randomValues);
+		compactFootprint("dense", order, denseKeys, denseValues);
+		System.out.println();
+	}
+
+	private static void compactFootprint(String name, int order, int[] keys, double[] values) {
+		long baseline = usedHeap();
+		bplustree tree = new bplustree(order);
+		for(int i = 0; i < keys.length; i++) {
+			tree.insert(keys[i], values[i]);
+		}
+		long plain = usedHeap() - baseline;
+		tree.compact();
+		long compact = usedHeap() - baseline;
+		System.out.printf("%8s %12.1f %12.1f %8.2f%n", name, plain / 1048576.0, compact / 1048576.0, (double)plain / compact);
+		sink += tree.search(keys[0]).length();
+	}
+
+	//Cost of keeping a value index on inserts and deletes, and value range queries with the index and with a full scan
+	private static void valueIndex(int size) {
+		int[] keys = randomKeys(size, Integer.MAX_VALUE, 18);
+		double[] values = new double[size];
+		Random random = new Random(19);
+		for(int i = 0; i < size; i++) {
+			values[i] = random.nextDouble() * 1000;
+		}
+		System.out.println("Value index with " + size + " random pairs, order 64");
+		System.out.printf("%8s %12s %12s %14s%n", "index", "insert ns", "delete ns", "range query us");
+		for(boolean indexed : new boolean[] {false, true}) {
+			double insert = measure(() -> null, ignored -> {
+				bplustree tree = new bplustree(64);
+				if(indexed)
+					tree.createValueIndex();
+				for(int i = 0; i < size; i++) {
+					tree.insert(keys[i], values[i]);
+				}
+				sink += tree.search(keys[0]).length();
+			}, size);
+			bplustree tree = new bplustree(64);
+			if(indexed)
+				tree.createValueIndex();
+			for(int i = 0; i < size; i++) {
+				tree.insert(keys[i], values[i]);
+			}
+			//Keys whose values are in a range holding about 0.1% of the pairs
+			double query = measure(() -> {
+				long[] sum = new long[1];
+				if(indexed) {
+					tree.searchByValue(500, 501, (key, value) -> sum[0] += key);
+				}else {
+					tree.search(Integer.MIN_VALUE, Integer.MAX_VALUE, (key, value) -> {
+						if(value >= 500 && value <= 501)
+							sum[0] += key;
+					});
+				}
+				sink += sum[0];
+			}, 1) / 1e3;
+			double delete = measure(() -> {
+				bplustree copy = new bplustree(64);
+				if(indexed)
+					copy.createValueIndex();
+				for(int i = 0; i < size; i++) {
+					copy.insert(keys[i], values[i]);
+				}
+				return copy;
+			}, copy -> {
+				for(int key : keys) {
+					copy.delete(key);
+				}
+			}, size);
+			System.out.printf("%8s %12.1f %12.1f %14.1f%n", indexed ? "yes" : "no", insert, delete, query);
+		}
+		System.out.println();
+	}
+
+	//Throughput and latency of a bplustreeserver on the loopback interface, over TCP and over a Unix domain socket
+	//The load is 90% Search(key) and 10% Insert(key, value) of uniform keys which all exist
+	private static void serverLoad(int keySpace, int commandsPerConnection) throws Exception {
+		concurrentbplustree tree = new concurrentbplustree(64);
+		for(int key = 0; key < keySpace; key++) {
+			tree.insert(key, key);
+		}
+		java.nio.file.Path directory = java.nio.file.Files.createTempDirectory("bplustree");
+		SocketAddress[] addresses = {new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), UnixDomainSocketAddress.of(directory.resolve("server.sock"))};
+		System.out.println("bplustreeserver with " + keySpace + " keys and " + (bplustreeserver.virtualThreads() ? "virtual" : "platform")
+				+ " connection threads, " + commandsPerConnection + " commands per connection");
+		System.out.printf("%6s %12s %6s %12s %10s %10s %12s%n", "socket", "connections", "depth", "commands/s", "mean us", "p99 us", "write batch");
+		for(SocketAddress address : addresses) {
+			bplustreeserver server = new bplustreeserver(tree);
+			SocketAddress bound = server.start(address);
+			for(int connections : new int[] {1, 16}) {
+				for(int depth : new int[] {1, 64}) {
+					long batches = server.writeBatches();
+					long writes = server.appliedWrites();
+					bplustreemetrics.LatencyHistogram latency = new bplustreemetrics.LatencyHistogram();
+					double seconds = loadGenerator(bound, connections, depth, commandsPerConnection, keySpace, latency);
+					double writeBatch = (double)(server.appliedWrites() - writes) / (server.writeBatches() - batches);
+					System.out.printf("%6s %12d %6d %12.0f %10.1f %10.1f %12.1f%n", address instanceof UnixDomainSocketAddress ? "unix" : "tcp",
+							connections, depth, latency.count / seconds, latency.mean() / 1e3, latency.percentile(0.99) / 1e3, writeBatch);
+				}
+			}
+			server.close();
+		}
+		java.nio.file.Files.delete(directory);
+		System.out.println();
+	}
+
+	//Loopback load generator, each of the connections sends commands commands in pipelined batches of depth
+	//and reads the answers of a batch before sending the next one
+	//The latency of a command is the time from sending its batch to reading its answer
+	//Return the elapsed seconds
+	private static double loadGenerator(SocketAddress address, int connections, int depth, int commands, int keySpace,
+			bplustreemetrics.LatencyHistogram latency) throws Exception {
+		bplustreemetrics.LatencyHistogram[] latencies = new bplustreemetrics.LatencyHistogram[connections];
+		Thread[] threads = new Thread[connections];
+		Exception[] failure = new Exception[1];
+		for(int c = 0; c < connections; c++) {
+			bplustreemetrics.LatencyHistogram histogram = new bplustreemetrics.LatencyHistogram();
+			Random random = new Random(c);
+			latencies[c] = histogram;
+			threads[c] = new Thread(() -> {
+				try(SocketChannel channel = SocketChannel.open(address)) {
+					BufferedReader in = new BufferedReader(new InputStreamReader(Channels.newInputStream(channel), StandardCharsets.US_ASCII));
+					Writer out = new BufferedWriter(new OutputStreamWriter(Channels.newOutputStream(channel), StandardCharsets.US_ASCII));
+					for(int sent = 0; sent < commands; sent += depth) {
+						int n = Math.min(depth, commands - sent);
+						for(int i = 0; i < n; i++) {
+							int key = random.nextInt(keySpace);
+							out.write(random.nextInt(10) == 0 ? "Insert(" + key + ", " + key + ")\r\n" : "Search(" + key + ")\r\n");
+						}
+						long start = System.nanoTime();
+						out.flush();
+						for(int i = 0; i < n; i++) {
+							if(in.readLine() == null)
+								throw new EOFException("The server closed the connection");
+							histogram.record(System.nanoTime() - start);
+						}
+					}
+				}catch(IOException e) {
+					synchronized(failure) {
+						failure[0] = e;
+					}
+				}
+			});
+		}
+		long start = System.nanoTime();
+		for(Thread thread : threads) {
+			thread.start();
+		}
+		for(Thread thread : threads) {
+			thread.join();
+		}
+		double seconds = (System.nanoTime() - start) / 1e9;
+		if(failure[0] != null)
+			throw failure[0];
+		for(bplustreemetrics.LatencyHistogram histogram : latencies) {
+			latency.add(histogram);
+		}
+		return seconds;
+	}
+
+	//Inserts into a durablebplustree with commits which don't wait for their fsync and a checkpoint every few thousand
+	//mutations, so checkpoints run while the log buffer is full, then the time to recover the tree from its directory
+	private static void durableCommits(int size, long checkpointInterval) throws java.io.IOException {
+		int[] keys = randomKeys(size, Integer.MAX_VALUE, 19);
+		java.nio.file.Path directory = java.nio.file.Files.createTempDirectory("bplustree");
+		System.out.println("Inserting " + size + " keys into a durablebplustree of order 64, asynchronous commits, a checkpoint every "
+				+ checkpointInterval + " mutations (ms)");
+		System.out.printf("%10s %10s %10s %10s%n", "insert", "fsyncs", "recover", "keys");
+		long start = System.nanoTime();
+		durablebplustree tree = new durablebplustree(directory, 64, false, 0, checkpointInterval);
+		for(int i = 0; i < size; i++) {
+			tree.insert(keys[i], i);
+		}
+		tree.sync();
+		double insert = (System.nanoTime() - start) / 1e6;
+		long syncs = tree.syncCount();
+		tree.close();
+		start = System.nanoTime();
+		durablebplustree recovered = new durablebplustree(directory, 64, false, 0, checkpointInterval);
+		double recover = (System.nanoTime() - start) / 1e6;
+		int count = recovered.search(Integer.MIN_VALUE, Integer.MAX_VALUE, (key, value) -> {});
+		recovered.close();
+		System.out.printf("%10.0f %10d %10.0f %10d%n", insert, syncs, recover, count);
+		if(count != size)
+			throw new IllegalStateException("Recovered " + count + " keys instead of " + size);
+		try(java.nio.file.DirectoryStream<java.nio.file.Path> files = java.nio.file.Files.newDirectoryStream(directory)) {
+			for(java.nio.file.Path file : files) {
+				java.nio.file.Files.delete(file);
+			}
+		}
+		java.nio.file.Files.delete(directory);
+		System.out.println();
+	}
+
+	//Time to rebuild a tree by replaying Insert commands and by loading a snapshot, each timed once like a restart
+	private static void snapshotRestart(int size) throws java.io.IOException {
+		int[] keys = randomKeys(size, Integer.MAX_VALUE, 17);
+		String[] commands = new String[size];
+		for(int i = 0; i < size; i++) {
+			commands[i] = "Insert(" + keys[i] + ", " + (keys[i] * 0.5) + ")";
+		}
+		java.nio.file.Path file = java.nio.file.Files.createTempFile("bplustree", ".snapshot");
+		System.out.println("Rebuilding a tree of " + size + " keys, order 64 (ms)");
+		System.out.printf("%10s %10s %10s %12s%n", "replay", "save", "load", "snapshot MiB");
+		long start = System.nanoTime();
+		bplustree tree = new bplustree(64);
+		for(String command : commands) {
+			bplustree.execute(tree, command);
+		}
+		double replay = (System.nanoTime() - start) / 1e6;
+		start = System.nanoTime();
+		tree.save(file);
+		double save = (System.nanoTime() - start) / 1e6;
+		tree = null;
+		start = System.nanoTime();
+		bplustree loaded = bplustree.load(file);
+		double load = (System.nanoTime() - start) / 1e6;
+		System.out.printf("%10.0f %10.0f %10.0f %12.1f%n", replay, save, load, java.nio.file.Files.size(file) / 1048576.0);
+		sink += loaded.search(keys[0]).length();
+		java.nio.file.Files.delete(file);
+		System.out.println();
+	}
+
+	//Heap in use after a full collection
+	private static long usedHeap() {
+		System.gc();
+		return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+	}
+
+	//Collection count and time in milliseconds summed over all collectors
+	private static long[] gcCounters() {
+		long[] counters = new long[2];
+		for(GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans()) {
+			counters[0] += Math.max(0, bean.getCollectionCount());
+			counters[1] += Math.max(0, bean.getCollectionTime());
+		}
+		return counters;
+	}
+
+	//Time of one full collection with everything live still reachable
+	private static long fullGcMillis() {
+		long start = System.nanoTime();
+		System.gc();
+		return (System.nanoTime() - start) / 1000000;
+	}
+
+	//Run the task a few times to warm up, then return the best time per operation in nanoseconds
+	private static double measure(Runnable task, int operations) {
+		return measure(() -> null, ignored -> task.run(), operations);
+	}
+
+	//Same as measure(task, operations) but every run gets a fresh input from setup, which isn't timed
+	private static <T> double measure(Supplier<T> setup, Consumer<T> task, int operations) {
+		for(int i = 0; i < WARMUP_ROUNDS; i++) {
+			task.accept(setup.get());
+		}
+		long best = Long.MAX_VALUE;
+		for(int i = 0; i < MEASURE_ROUNDS; i++) {
+			T input = setup.get();
+			long start = System.nanoTime();
+			task.accept(input);
+			best = Math.min(best, System.nanoTime() - start);
+		}
+		return (double)best / operations;
+	}
+
+	//Random keys in [0, bound), they are distinct when the bound is large enough to pick from
+	private static int[] randomKeys(int count, int bound, long seed) {
+		Random random = new Random(seed);
+		if(bound <= count * 2) {
+			int[] keys = new int[count];
+			for(int i = 0; i < count; i++) {
+				keys[i] = random.nextInt(bound);
+			}
+			return keys;
+		}
+		Set<Integer> used = new HashSet<>();
+		int[] keys = new int[count];
+		int size = 0;
+		while(size < count) {
+			int key = random.nextInt(bound);
+			if(used.add(key))
+				keys[size++] = key;
+		}
+		return keys;
+	}
+
+	//Run with no argument for every benchmark, or with the name of one: search, workload, batch, multiget, cache, valueindex, memory, fill, snapshot,
+	//durable, aggregate, sharded, server
+	//workload takes the data set sizes as further arguments
+	public static void main(String[] args) throws Exception {
+		String name = args.length > 0 ? args[0] : "all";
+		if(name.equals("all") || name.equals("search"))
+			searchStrategyCrossover();
+		if(name.equals("all") || name.equals("workload")) {
+			int[] sizes = SUITE_SIZES;
+			if(args.length > 1) {
+				sizes = new int[args.length - 1];
+				for(int i = 1; i < args.length; i++) {
+					sizes[i - 1] = Integer.parseInt(args[i]);
+				}
+			}
+			workloadSuite(sizes);
+		}
+		if(name.equals("all") || name.equals("batch")) {
+			for(int batchSize : new int[] {1000, 10000, 100000}) {
+				batchThroughput(1000000, batchSize);
+			}
+		}
+		if(name.equals("all") || name.equals("multiget"))
+			multiGet(4000000);
+		if(name.equals("all") || name.equals("cache"))
+			cachedLookups(4000000);
+		if(name.equals("all") || name.equals("valueindex"))
+			valueIndex(1000000);
+		if(name.equals("all") || name.equals("memory")) {
+			offHeapFootprint(4000000);
+			compactFootprint(4000000);
+		}
+		if(name.equals("all") || name.equals("fill"))
+			splitFill(4000000);
+		if(name.equals("all") || name.equals("snapshot"))
+			snapshotRestart(4000000);
+		if(name.equals("all") || name.equals("durable"))
+			durableCommits(3000000, 5000);
+		if(name.equals("all") || name.equals("aggregate"))
+			rangeAggregate(10000000);
+		if(name.equals("all") || name.equals("sharded"))
+			shardedWrites(1000000);
+		if(name.equals("all") || name.equals("server"))
+			serverLoad(1000000, 200000);
+	}
+
+}
@@ -0,0 +1,172 @@
+//Bounded cache of the values of hot keys, kept in front of a bplustree by bplustree.setCache
+//The keys are found through an open-addressing table with linear probing, which maps a key to its entry
+//When every entry is in use a new key replaces one chosen by the CLOCK algorithm:
+//a hit sets the referenced bit of an entry, the hand clears set bits and evicts the first entry whose bit is clear,
+//so a key read again since the hand last passed stays while keys read once are the first to go
+//The cache isn't thread-safe, even a lookup writes the referenced bit and the counters
+public class bplustreecache {
+
+	private final int capacity;
+	//Entry index + 1 of the key hashed to each slot, 0 for an empty slot
+	private final int[] slots;
+	private final int mask;
+	private final int shift;
+
+	private final int[] keys;
+	private final double[] values;
+	//The String search(int) returns for an entry, made on the first String lookup
+	private final String[] strings;
+	private final boolean[] referenced;
+	private final boolean[] live;
+	//Entries in [0, used) have been handed out at least once
+	private int used;
+	private int size;
+	private int hand;
+
+	private long hits;
+	private long misses;
+
+	//A cache of at most capacity keys
+	bplustreecache(int capacity){
+		if(capacity < 1 || capacity > 1 << 29)
+			throw new IllegalArgumentException("The capacity must be in [1, 2^29]: " + capacity);
+		this.capacity = capacity;
+		//Keep the table at most half full so probe sequences stay short
+		int tableSize = Integer.highestOneBit(Math.max(2, capacity * 2 - 1)) << 1;
+		this.slots = new int[tableSize];
+		this.mask = tableSize - 1;
+		this.shift = 32 - Integer.numberOfTrailingZeros(tableSize);
+		this.keys = new int[capacity];
+		this.values = new double[capacity];
+		this.strings = new String[capacity];
+		this.referenced = new boolean[capacity];
+		this.live = new boolean[capacity];
+	}
+
+	//Fibonacci hashing, the top bits of the product are well mixed even for sequential keys
+	private int home(int key) {
+		return (key * 0x9E3779B9) >>> shift;
+	}
+
+	//Slot of a key, or the empty slot where its probe sequence ends
+	private int slotOf(int key) {
+		int slot = home(key);
+		while(slots[slot] != 0 && keys[slots[slot] - 1] != key) {
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+
+	//Return the entry of a cached key and count a hit, or return -1 and count a miss
+	int find(int key) {
+		int entry = slots[slotOf(key)] - 1;
+		if(entry == -1) {
+			misses++;
+			return -1;
+		}
+		hits++;
+		referenced[entry] = true;
+		return entry;
+	}
+
+	double value(int entry) {
+		return values[entry];
+	}
+
+	String string(int entry) {
+		String string = strings[entry];
+		if(string == null) {
+			string = Double.toString(values[entry]);
+			strings[entry] = string;
+		}
+		return string;
+	}
+
+	//Cache the value of a key which isn't cached yet, evicting another key when the cache is full
+	//Return the entry of the key
+	int add(int key, double value) {
+		int entry = used < capacity ? used++ : evict();
+		keys[entry] = key;
+		values[entry] = value;
+		strings[entry] = null;
+		referenced[entry] = false;
+		live[entry] = true;
+		slots[slotOf(key)] = entry + 1;
+		size++;
+		return entry;
+	}
+
+	//Move the hand to the first free entry or to the first entry whose referenced bit is clear, and free it
+	private int evict() {
+		while(true) {
+			int entry = hand;
+			hand = hand + 1 == capacity ? 0 : hand + 1;
+			if(!live[entry])
+				return entry;
+			if(referenced[entry]) {
+				referenced[entry] = false;
+			}else {
+				remove(slotOf(keys[entry]));
+				return entry;
+			}
+		}
+	}
+
+	//Forget a key after its value changed or it was deleted
+	void invalidate(int key) {
+		int slot = slotOf(key);
+		if(slots[slot] != 0)
+			remove(slot);
+	}
+
+	//Empty the slot of a cached key and free its entry
+	//Later keys of the probe sequence are shifted back so no lookup stops early at the hole
+	private void remove(int slot) {
+		int entry = slots[slot] - 1;
+		live[entry] = false;
+		strings[entry] = null;
+		size--;
+		int hole = slot;
+		int next = (slot + 1) & mask;
+		while(slots[next] != 0) {
+			int home = home(keys[slots[next] - 1]);
+			//Move the key into the hole unless its home lies in (hole, next]
+			if(((next - home) & mask) >= ((next - hole) & mask)) {
+				slots[hole] = slots[next];
+				hole = next;
+			}
+			next = (next + 1) & mask;
+		}
+		slots[hole] = 0;
+	}
+
+	public int capacity() {
+		return capacity;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public long hits() {
+		return hits;
+	}
+
+	public long misses() {
+		return misses;
+	}
+
+	//Share of the lookups answered by the cache, NaN before the first lookup
+	public double hitRatio() {
+		return (double)hits / (hits + misses);
+	}
+
+	public void resetCounters() {
+		hits = misses = 0;
+	}
+
+	public String toString() {
+		return String.format("%d/%d keys, %d hits, %d misses, hit ratio %.3f", size, capacity, hits, misses, hitRatio());
+	}
+
+}
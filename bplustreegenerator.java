@@ -0,0 +1,32 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+
+//Writes the primitive-specialized trees from bplustree.template
+//The template uses $CLASS$, $KEY$ and $VALUE$ for the class name, the key type and the value type
+//Run it from the source directory after editing the template: java bplustreegenerator [template] [output directory]
+public class bplustreegenerator {
+
+	//Class name, key type and value type of every generated tree
+	final static String[][] VARIANTS = {
+		{"longlongbplustree", "long", "long"},
+		{"longdoublebplustree", "long", "double"},
+		{"intintbplustree", "int", "int"},
+	};
+
+	public static void main(String[] args) throws IOException {
+		Path template = Paths.get(args.length > 0 ? args[0] : "bplustree.template");
+		Path directory = Paths.get(args.length > 1 ? args[1] : ".");
+		String source = new String(Files.readAllBytes(template), StandardCharsets.UTF_8);
+		for(String[] variant : VARIANTS) {
+			Path file = directory.resolve(variant[0] + ".java");
+			Files.write(file, generate(source, variant[0], variant[1], variant[2]).getBytes(StandardCharsets.UTF_8));
+			System.out.println("Wrote " + file);
+		}
+	}
+
+	static String generate(String template, String className, String keyType, String valueType) {
+		return template.replace("$CLASS$", className).replace("$KEY$", keyType).replace("$VALUE$", valueType);
+	}
+
+}
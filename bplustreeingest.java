@@ -0,0 +1,519 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+//Fast path of bplustree.initialize for large input files, it writes the same output_file.txt
+//The input is memory-mapped in windows and parsed straight from the bytes, without a String per line
+//A decoder thread parses the commands ahead into reusable batches while the calling thread runs them on the tree
+//Search results are formatted into a reusable byte buffer which is written to the output file when it fills up
+//Lines which don't have the exact shape Command(number[,number]) are handed over as Strings to bplustree.execute,
+//so odd spacing, extra arguments and malformed numbers behave exactly like in bplustree.initialize
+public class bplustreeingest {
+
+	//Bytes of the input mapped at once, a line must fit in one window
+	private final static int WINDOW_SIZE = 1 << 26;
+	private final static int BATCH_SIZE = 4096;
+	//Batches in flight between the decoder and the tree
+	private final static int BATCH_COUNT = 4;
+	private final static int OUTPUT_BUFFER_SIZE = 1 << 16;
+
+	private final static byte INSERT = 1;
+	private final static byte SEARCH = 2;
+	private final static byte RANGE_SEARCH = 3;
+	private final static byte DELETE = 4;
+	//A line which is run by bplustree.execute
+	private final static byte LINE = 5;
+
+	private final static byte[] INSERT_PREFIX = bplustree.instructions[1].getBytes(StandardCharsets.US_ASCII);
+	private final static byte[] SEARCH_PREFIX = bplustree.instructions[2].getBytes(StandardCharsets.US_ASCII);
+	private final static byte[] DELETE_PREFIX = bplustree.instructions[3].getBytes(StandardCharsets.US_ASCII);
+
+	//Powers of ten which are exact doubles, used by the fast path of parseDouble
+	private final static double[] POWERS_OF_TEN = new double[23];
+	static {
+		POWERS_OF_TEN[0] = 1;
+		for(int i = 1; i < POWERS_OF_TEN.length; i++) {
+			POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+		}
+	}
+
+	//Read the input file, create an m way B+ tree
+	//Then perform all the instructions and write the output in output_file.txt
+	public static void initialize(String fileAddress) throws IOException {
+		try(FileChannel input = FileChannel.open(Paths.get(fileAddress), StandardOpenOption.READ);
+				FileChannel output = FileChannel.open(Paths.get(bplustree.OUTPUT_FILE), StandardOpenOption.CREATE,
+						StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			OutputBuffer out = new OutputBuffer(output);
+			Decoder decoder = new Decoder(input);
+			String header = decoder.readHeader();
+			if(header != null && header.startsWith(bplustree.instructions[0])) {
+				int order = Integer.parseInt(header.substring(bplustree.instructions[0].length() + 1, header.length() - 1));
+				run(new bplustree(order), decoder, out);
+			}
+			out.flush();
+		}
+	}
+
+	//Run the batches of the decoder thread on the tree
+	private static void run(bplustree tree, Decoder decoder, OutputBuffer out) throws IOException {
+		Thread thread = new Thread(decoder, "bplustree-decoder");
+		thread.setDaemon(true);
+		thread.start();
+		PointVisitor point = new PointVisitor();
+		try {
+			while(true) {
+				Batch batch = take(decoder.full);
+				if(batch.failure != null)
+					rethrow(batch.failure);
+				for(int i = 0; i < batch.size; i++) {
+					switch(batch.commands[i]) {
+					case INSERT:
+						tree.insert(batch.keys[i], batch.values[i]);
+						break;
+					case SEARCH:
+						if(tree.search(batch.keys[i], point))
+							out.writeDouble(point.value);
+						out.newLine();
+						break;
+					case RANGE_SEARCH:
+						out.first = true;
+						tree.search(batch.keys[i], batch.endKeys[i], out);
+						out.newLine();
+						break;
+					case DELETE:
+						tree.delete(batch.keys[i]);
+						break;
+					default:
+						String outputLine = bplustree.execute(tree, batch.lines[i]);
+						batch.lines[i] = null;
+						if(outputLine != null) {
+							out.writeString(outputLine);
+							out.newLine();
+						}
+					}
+				}
+				if(batch.last)
+					return;
+				put(decoder.free, batch);
+			}
+		} finally {
+			decoder.stopped = true;
+			thread.interrupt();
+		}
+	}
+
+	private static Batch take(BlockingQueue<Batch> queue) throws InterruptedIOException {
+		try {
+			return queue.take();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		}
+	}
+
+	private static void put(BlockingQueue<Batch> queue, Batch batch) throws InterruptedIOException {
+		try {
+			queue.put(batch);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		}
+	}
+
+	private static void rethrow(Throwable failure) throws IOException {
+		if(failure instanceof IOException)
+			throw (IOException)failure;
+		if(failure instanceof RuntimeException)
+			throw (RuntimeException)failure;
+		if(failure instanceof Error)
+			throw (Error)failure;
+		throw new IOException(failure);
+	}
+
+	//Parsed commands, arrays of primitives so a batch is filled and emptied without allocating
+	private static class Batch {
+		final byte[] commands = new byte[BATCH_SIZE];
+		final int[] keys = new int[BATCH_SIZE];
+		final int[] endKeys = new int[BATCH_SIZE];
+		final double[] values = new double[BATCH_SIZE];
+		final String[] lines = new String[BATCH_SIZE];
+		int size;
+		boolean last;
+		Throwable failure;
+	}
+
+	//Remembers the value found by a point search
+	private static class PointVisitor implements bplustree.KeyValueVisitor {
+		double value;
+
+		public void visit(int key, double value) {
+			this.value = value;
+		}
+	}
+
+	//Splits the mapped input into lines and parses them into batches
+	private static class Decoder implements Runnable {
+
+		final BlockingQueue<Batch> free = new ArrayBlockingQueue<>(BATCH_COUNT);
+		final BlockingQueue<Batch> full = new ArrayBlockingQueue<>(BATCH_COUNT);
+		volatile boolean stopped;
+
+		private final FileChannel channel;
+		private final long size;
+		//Offset of the first line after the header
+		private long start;
+		private MappedByteBuffer window;
+		private Batch batch;
+		//Result of parseInt and parseDouble, pos is moved past the parsed characters
+		private int pos;
+		private int parsedInt;
+		private double parsedDouble;
+
+		Decoder(FileChannel channel) throws IOException {
+			this.channel = channel;
+			this.size = channel.size();
+			for(int i = 0; i < BATCH_COUNT; i++) {
+				free.add(new Batch());
+			}
+		}
+
+		//Return the first line of the file, or null when the file is empty
+		String readHeader() throws IOException {
+			if(size == 0)
+				return null;
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(WINDOW_SIZE, size));
+			int end = 0;
+			while(end < buffer.limit() && buffer.get(end) != '\n' && buffer.get(end) != '\r') {
+				end++;
+			}
+			if(end == buffer.limit() && end < size)
+				throw new IOException("The first line is longer than " + WINDOW_SIZE + " bytes");
+			byte[] bytes = new byte[end];
+			buffer.get(0, bytes);
+			start = end;
+			return new String(bytes, Charset.defaultCharset());
+		}
+
+		public void run() {
+			try {
+				batch = free.take();
+				long position = start;
+				while(position < size) {
+					long length = Math.min(WINDOW_SIZE, size - position);
+					boolean end = position + length == size;
+					window = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+					int limit = (int)length;
+					int lineStart = 0;
+					int i = 0;
+					while(true) {
+						//Both \n and \r end a line like in BufferedReader.readLine, the empty line between \r and \n is skipped
+						while(i < limit && window.get(i) != '\n' && window.get(i) != '\r') {
+							i++;
+						}
+						if(i == limit && !end)
+							break;
+						if(i > lineStart)
+							decodeLine(lineStart, i);
+						if(i == limit)
+							break;
+						lineStart = ++i;
+					}
+					if(lineStart == 0 && !end)
+						throw new IOException("A line is longer than " + WINDOW_SIZE + " bytes");
+					position = end ? size : position + lineStart;
+				}
+				batch.last = true;
+				full.put(batch);
+			} catch (Throwable e) {
+				if(stopped || batch == null)
+					return;
+				batch.failure = e;
+				batch.last = true;
+				try {
+					full.put(batch);
+				} catch (InterruptedException ignored) {
+				}
+			}
+		}
+
+		//Parse the line [from, to) of the window into the current batch
+		private void decodeLine(int from, int to) throws InterruptedException {
+			int i = batch.size;
+			if(startsWith(from, to, INSERT_PREFIX)) {
+				pos = from + INSERT_PREFIX.length;
+				if(open(to) && parseInt(to) && comma(to)) {
+					batch.keys[i] = parsedInt;
+					if(parseDouble(to) && close(to)) {
+						batch.values[i] = parsedDouble;
+						add(INSERT);
+						return;
+					}
+				}
+			}else if(startsWith(from, to, SEARCH_PREFIX)) {
+				pos = from + SEARCH_PREFIX.length;
+				if(open(to) && parseInt(to)) {
+					batch.keys[i] = parsedInt;
+					if(close(to)) {
+						add(SEARCH);
+						return;
+					}
+					if(comma(to) && parseInt(to) && close(to)) {
+						batch.endKeys[i] = parsedInt;
+						add(RANGE_SEARCH);
+						return;
+					}
+				}
+			}else if(startsWith(from, to, DELETE_PREFIX)) {
+				pos = from + DELETE_PREFIX.length;
+				if(open(to) && parseInt(to) && close(to)) {
+					batch.keys[i] = parsedInt;
+					add(DELETE);
+					return;
+				}
+			}else {
+				//bplustree.execute ignores the line
+				return;
+			}
+			byte[] bytes = new byte[to - from];
+			window.get(from, bytes);
+			batch.lines[i] = new String(bytes, Charset.defaultCharset());
+			add(LINE);
+		}
+
+		private void add(byte command) throws InterruptedException {
+			batch.commands[batch.size++] = command;
+			if(batch.size == BATCH_SIZE) {
+				full.put(batch);
+				batch = free.take();
+				batch.size = 0;
+			}
+		}
+
+		//The prefix must be followed by at least one more character, like in bplustree.execute
+		private boolean startsWith(int from, int to, byte[] prefix) {
+			if(to - from <= prefix.length)
+				return false;
+			for(int i = 0; i < prefix.length; i++) {
+				if(window.get(from + i) != prefix[i])
+					return false;
+			}
+			return true;
+		}
+
+		private boolean open(int to) {
+			if(pos < to && window.get(pos) == '(') {
+				pos++;
+				return true;
+			}
+			return false;
+		}
+
+		private boolean comma(int to) {
+			skipSpaces(to);
+			if(pos < to && window.get(pos) == ',') {
+				pos++;
+				return true;
+			}
+			return false;
+		}
+
+		//The closing parenthesis must end the line
+		private boolean close(int to) {
+			skipSpaces(to);
+			return pos == to - 1 && window.get(pos) == ')';
+		}
+
+		//String.trim removes every character up to the space
+		private void skipSpaces(int to) {
+			while(pos < to && (window.get(pos) & 0xff) <= ' ') {
+				pos++;
+			}
+		}
+
+		//Same numbers as Integer.parseInt of the trimmed text, but numbers of more than 10 digits are left to it
+		private boolean parseInt(int to) {
+			skipSpaces(to);
+			boolean negative = false;
+			if(pos < to && (window.get(pos) == '-' || window.get(pos) == '+')) {
+				negative = window.get(pos) == '-';
+				pos++;
+			}
+			long value = 0;
+			int digits = 0;
+			while(pos < to && window.get(pos) >= '0' && window.get(pos) <= '9') {
+				value = value * 10 + (window.get(pos) - '0');
+				digits++;
+				pos++;
+			}
+			if(digits == 0 || digits > 10)
+				return false;
+			value = negative ? -value : value;
+			if(value < Integer.MIN_VALUE || value > Integer.MAX_VALUE)
+				return false;
+			parsedInt = (int)value;
+			return true;
+		}
+
+		//Decimal numbers with an optional sign, fraction and exponent
+		//When the digits fit in 53 bits and the power of ten is exact, one multiplication or division
+		//rounds correctly (Clinger's fast path), other numbers are parsed by Double.parseDouble
+		private boolean parseDouble(int to) {
+			skipSpaces(to);
+			int from = pos;
+			boolean negative = false;
+			if(pos < to && (window.get(pos) == '-' || window.get(pos) == '+')) {
+				negative = window.get(pos) == '-';
+				pos++;
+			}
+			long mantissa = 0;
+			int digits = 0;
+			int significant = 0;
+			int exponent = 0;
+			boolean fraction = false;
+			while(pos < to) {
+				byte b = window.get(pos);
+				if(b >= '0' && b <= '9') {
+					digits++;
+					if(mantissa != 0 || b != '0')
+						significant++;
+					if(significant <= 18)
+						mantissa = mantissa * 10 + (b - '0');
+					else if(!fraction)
+						exponent++;
+					if(fraction && significant <= 18)
+						exponent--;
+				}else if(b == '.' && !fraction) {
+					fraction = true;
+				}else {
+					break;
+				}
+				pos++;
+			}
+			if(digits == 0)
+				return false;
+			if(pos < to && (window.get(pos) == 'e' || window.get(pos) == 'E')) {
+				pos++;
+				boolean negativeExponent = false;
+				if(pos < to && (window.get(pos) == '-' || window.get(pos) == '+')) {
+					negativeExponent = window.get(pos) == '-';
+					pos++;
+				}
+				int exponentDigits = 0;
+				int value = 0;
+				while(pos < to && window.get(pos) >= '0' && window.get(pos) <= '9') {
+					if(value < 100000)
+						value = value * 10 + (window.get(pos) - '0');
+					exponentDigits++;
+					pos++;
+				}
+				if(exponentDigits == 0)
+					return false;
+				exponent += negativeExponent ? -value : value;
+			}
+			double value;
+			if(mantissa == 0) {
+				value = 0;
+			}else if(significant <= 18 && mantissa <= (1L << 53) && exponent >= -22 && exponent <= 22) {
+				value = exponent >= 0 ? mantissa * POWERS_OF_TEN[exponent] : mantissa / POWERS_OF_TEN[-exponent];
+			}else {
+				byte[] bytes = new byte[pos - from];
+				window.get(from, bytes);
+				parsedDouble = Double.parseDouble(new String(bytes, StandardCharsets.US_ASCII));
+				return true;
+			}
+			parsedDouble = negative ? -value : value;
+			return true;
+		}
+
+	}
+
+	//Output of the searches, written to the file whenever the buffer fills up
+	//As a visitor it appends the values of a range search separated by commas
+	private static class OutputBuffer implements bplustree.KeyValueVisitor {
+
+		private final FileChannel channel;
+		private final byte[] bytes = new byte[OUTPUT_BUFFER_SIZE];
+		private final ByteBuffer buffer = ByteBuffer.wrap(bytes);
+		private final byte[] digits = new byte[20];
+		private int size;
+		boolean first;
+
+		OutputBuffer(FileChannel channel){
+			this.channel = channel;
+		}
+
+		public void visit(int key, double value) {
+			try {
+				if(!first)
+					write((byte)',');
+				first = false;
+				writeDouble(value);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+
+		void newLine() throws IOException {
+			write((byte)'\r');
+			write((byte)'\n');
+		}
+
+		//Same text as Double.toString, integral values below 10^7 are formatted without allocating
+		void writeDouble(double value) throws IOException {
+			if(value == Math.rint(value) && Math.abs(value) < 1e7) {
+				if(Double.doubleToRawLongBits(value) < 0)
+					write((byte)'-');
+				long integer = (long)Math.abs(value);
+				int count = 0;
+				do {
+					digits[count++] = (byte)('0' + integer % 10);
+					integer /= 10;
+				}while(integer != 0);
+				while(count > 0) {
+					write(digits[--count]);
+				}
+				write((byte)'.');
+				write((byte)'0');
+			}else {
+				writeString(Double.toString(value));
+			}
+		}
+
+		//Output lines only hold ASCII characters
+		void writeString(String text) throws IOException {
+			for(int i = 0; i < text.length(); i++) {
+				write((byte)text.charAt(i));
+			}
+		}
+
+		private void write(byte b) throws IOException {
+			if(size == bytes.length)
+				flush();
+			bytes[size++] = b;
+		}
+
+		void flush() throws IOException {
+			buffer.clear().limit(size);
+			while(buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+			size = 0;
+		}
+
+	}
+
+	public static void main(String[] args) {
+		try {
+			initialize(args[0]);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+}
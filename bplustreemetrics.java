@@ -0,0 +1,301 @@
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import javax.management.*;
+
+//Counters and latency histograms of one bplustree
+//The structural counters are plain fields bumped by the tree on every split, borrow and merge, they cost one increment
+//Latency is only measured for one operation out of every sampling interval, so the clock is not read on most operations
+//Like the tree itself the counters are written by one thread, readers on other threads may see values a little behind
+public class bplustreemetrics {
+
+	//Operations whose latency is measured
+	enum Operation {INSERT, SEARCH, RANGE, DELETE}
+
+	long leafSplits;
+	long internalSplits;
+	long leafMerges;
+	long internalMerges;
+	long borrowsFromLeft;
+	long borrowsFromRight;
+	//Times the tree grew or shrank by one level
+	long rootSplits;
+	long rootCollapses;
+
+	private final LatencyHistogram[] latencies = new LatencyHistogram[Operation.values().length];
+	//-1 when sampling is off, otherwise interval - 1 where the interval is a power of two
+	private int sampleMask = -1;
+	private int operations;
+
+	//Last snapshot taken by the tree's thread, the only tree state shown through JMX
+	private volatile Snapshot latest;
+
+	bplustreemetrics(){
+		for(int i = 0; i < latencies.length; i++) {
+			latencies[i] = new LatencyHistogram();
+		}
+	}
+
+	//Measure the latency of one operation out of every interval operations, 0 turns the measuring off
+	//The interval is rounded up to a power of two
+	public void setSampling(int interval) {
+		if(interval < 0 || interval > 1 << 30)
+			throw new IllegalArgumentException("The sampling interval must be in [0, 2^30]: " + interval);
+		if(interval == 0) {
+			sampleMask = -1;
+		}else {
+			sampleMask = (interval == 1 ? 1 : Integer.highestOneBit(interval - 1) << 1) - 1;
+		}
+		operations = 0;
+	}
+
+	//Called when an operation starts, return the start time when the operation is sampled and 0 otherwise
+	long start() {
+		if(sampleMask < 0 || (++operations & sampleMask) != 0)
+			return 0;
+		return System.nanoTime();
+	}
+
+	//Called when an operation ends with the value start returned
+	void stop(Operation operation, long start) {
+		if(start != 0)
+			latencies[operation.ordinal()].record(System.nanoTime() - start);
+	}
+
+	//Forget every counter and measured latency
+	public void reset() {
+		leafSplits = internalSplits = leafMerges = internalMerges = 0;
+		borrowsFromLeft = borrowsFromRight = rootSplits = rootCollapses = 0;
+		for(LatencyHistogram histogram : latencies) {
+			histogram.reset();
+		}
+	}
+
+	//The snapshot most recently taken with bplustree.metricsSnapshot, or null before the first one
+	public Snapshot latest() {
+		return latest;
+	}
+
+	//Build a snapshot from the counters and the shape of the tree, level i is the level at depth i
+	//maxKeyNum is the capacity of the internal nodes and maxLeafKeyNum the one of the external nodes
+	Snapshot snapshot(int maxKeyNum, int maxLeafKeyNum, int[] nodes, long[] keys, long[] deficient) {
+		Snapshot snapshot = new Snapshot(this, maxKeyNum, maxLeafKeyNum, nodes, keys, deficient);
+		latest = snapshot;
+		return snapshot;
+	}
+
+	//Register a JMX bean under the given name, for example "bplustree:type=Metrics,name=main"
+	//The bean shows the latest snapshot, the tree isn't thread-safe so JMX never walks it
+	//The owner of the tree has to call bplustree.metricsSnapshot from time to time to refresh it
+	public ObjectName register(String name) throws JMException {
+		ObjectName objectName = new ObjectName(name);
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		server.registerMBean(new StandardMBean(new View(), MetricsMBean.class), objectName);
+		return objectName;
+	}
+
+	//Attributes of the JMX bean
+	public interface MetricsMBean {
+		long getLeafSplits();
+		long getInternalSplits();
+		long getLeafMerges();
+		long getInternalMerges();
+		long getBorrowsFromLeft();
+		long getBorrowsFromRight();
+		int getHeight();
+		long getKeys();
+		double getLeafFillFactor();
+		double getInternalFillFactor();
+		long getDeficientNodes();
+		String getReport();
+	}
+
+	private class View implements MetricsMBean {
+
+		private Snapshot snapshot() {
+			Snapshot snapshot = latest;
+			if(snapshot == null)
+				throw new IllegalStateException("No snapshot has been taken");
+			return snapshot;
+		}
+
+		public long getLeafSplits() { return snapshot().leafSplits; }
+		public long getInternalSplits() { return snapshot().internalSplits; }
+		public long getLeafMerges() { return snapshot().leafMerges; }
+		public long getInternalMerges() { return snapshot().internalMerges; }
+		public long getBorrowsFromLeft() { return snapshot().borrowsFromLeft; }
+		public long getBorrowsFromRight() { return snapshot().borrowsFromRight; }
+		public int getHeight() { return snapshot().height(); }
+		public long getKeys() { return snapshot().keys(); }
+		public double getLeafFillFactor() { return snapshot().leafFillFactor(); }
+		public double getInternalFillFactor() { return snapshot().internalFillFactor(); }
+		public long getDeficientNodes() { return snapshot().deficientNodes(); }
+		public String getReport() { return snapshot().toString(); }
+
+	}
+
+	//Latencies in buckets of powers of two nanoseconds, bucket i counts latencies in [2^(i-1), 2^i)
+	static class LatencyHistogram {
+
+		final long[] buckets = new long[64];
+		long count;
+		long total;
+		long max;
+
+		void record(long nanos) {
+			buckets[64 - Long.numberOfLeadingZeros(nanos)]++;
+			count++;
+			total += nanos;
+			max = Math.max(max, nanos);
+		}
+
+		void reset() {
+			Arrays.fill(buckets, 0);
+			count = total = max = 0;
+		}
+
+		//Add the latencies recorded by another histogram
+		void add(LatencyHistogram other) {
+			for(int i = 0; i < buckets.length; i++) {
+				buckets[i] += other.buckets[i];
+			}
+			count += other.count;
+			total += other.total;
+			max = Math.max(max, other.max);
+		}
+
+		LatencyHistogram copy() {
+			LatencyHistogram copy = new LatencyHistogram();
+			System.arraycopy(buckets, 0, copy.buckets, 0, buckets.length);
+			copy.count = count;
+			copy.total = total;
+			copy.max = max;
+			return copy;
+		}
+
+		//Upper bound in nanoseconds of the latency below which a fraction p of the measured operations fall
+		long percentile(double p) {
+			if(count == 0)
+				return 0;
+			long rank = (long)Math.ceil(p * count);
+			long seen = 0;
+			for(int i = 0; i < buckets.length; i++) {
+				seen += buckets[i];
+				if(seen >= rank)
+					return Math.min(i == 0 ? 0 : 1L << i, max);
+			}
+			return max;
+		}
+
+		double mean() {
+			return count == 0 ? 0 : (double)total / count;
+		}
+
+	}
+
+	//Counters, latencies and shape of a tree at one moment
+	public static class Snapshot {
+
+		final long leafSplits;
+		final long internalSplits;
+		final long leafMerges;
+		final long internalMerges;
+		final long borrowsFromLeft;
+		final long borrowsFromRight;
+		final long rootSplits;
+		final long rootCollapses;
+		final LatencyHistogram[] latencies;
+		final int maxKeyNum;
+		final int maxLeafKeyNum;
+		//Indexed by depth, the last level holds the external nodes
+		final int[] levelNodes;
+		final long[] levelKeys;
+		final long[] levelDeficient;
+
+		private Snapshot(bplustreemetrics metrics, int maxKeyNum, int maxLeafKeyNum, int[] nodes, long[] keys, long[] deficient) {
+			this.leafSplits = metrics.leafSplits;
+			this.internalSplits = metrics.internalSplits;
+			this.leafMerges = metrics.leafMerges;
+			this.internalMerges = metrics.internalMerges;
+			this.borrowsFromLeft = metrics.borrowsFromLeft;
+			this.borrowsFromRight = metrics.borrowsFromRight;
+			this.rootSplits = metrics.rootSplits;
+			this.rootCollapses = metrics.rootCollapses;
+			this.latencies = new LatencyHistogram[metrics.latencies.length];
+			for(int i = 0; i < latencies.length; i++) {
+				latencies[i] = metrics.latencies[i].copy();
+			}
+			this.maxKeyNum = maxKeyNum;
+			this.maxLeafKeyNum = maxLeafKeyNum;
+			this.levelNodes = nodes;
+			this.levelKeys = keys;
+			this.levelDeficient = deficient;
+		}
+
+		public int height() {
+			return levelNodes.length;
+		}
+
+		//Number of keys in the external nodes
+		public long keys() {
+			return levelKeys[levelKeys.length - 1];
+		}
+
+		//Used share of the key slots of one level
+		public double fillFactor(int depth) {
+			int capacity = depth == height() - 1 ? maxLeafKeyNum : maxKeyNum;
+			return (double)levelKeys[depth] / ((long)levelNodes[depth] * capacity);
+		}
+
+		public double leafFillFactor() {
+			return fillFactor(height() - 1);
+		}
+
+		//Used share of the key slots of every internal node, NaN when the root is an external node
+		public double internalFillFactor() {
+			long keys = 0;
+			long slots = 0;
+			for(int i = 0; i < height() - 1; i++) {
+				keys += levelKeys[i];
+				slots += (long)levelNodes[i] * maxKeyNum;
+			}
+			return (double)keys / slots;
+		}
+
+		//Nodes other than the root holding fewer than the minimum number of keys
+		//Eager deletes keep it at 0, with lazy deletion it counts the external nodes still waiting for rebalancing
+		//and after right-biased splits the newest nodes of an ascending run until the run fills them
+		public long deficientNodes() {
+			long count = 0;
+			for(long deficient : levelDeficient) {
+				count += deficient;
+			}
+			return count;
+		}
+
+		public LatencyHistogram latency(Operation operation) {
+			return latencies[operation.ordinal()];
+		}
+
+		public String toString() {
+			StringBuilder sb = new StringBuilder();
+			sb.append(String.format("splits: %d external, %d internal, %d root%n", leafSplits, internalSplits, rootSplits));
+			sb.append(String.format("merges: %d external, %d internal, %d root%n", leafMerges, internalMerges, rootCollapses));
+			sb.append(String.format("borrows: %d from left, %d from right%n", borrowsFromLeft, borrowsFromRight));
+			sb.append(String.format("height %d, %d keys%n", height(), keys()));
+			for(int i = 0; i < height(); i++) {
+				sb.append(String.format("  level %d: %d nodes, %d keys, fill %.3f, %d deficient%n",
+						i, levelNodes[i], levelKeys[i], fillFactor(i), levelDeficient[i]));
+			}
+			for(Operation operation : Operation.values()) {
+				LatencyHistogram histogram = latency(operation);
+				if(histogram.count == 0)
+					continue;
+				sb.append(String.format("%s: %d sampled, mean %.0f ns, p50 %d ns, p99 %d ns, max %d ns%n", operation,
+						histogram.count, histogram.mean(), histogram.percentile(0.5), histogram.percentile(0.99), histogram.max));
+			}
+			return sb.toString();
+		}
+
+	}
+
+}
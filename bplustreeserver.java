@@ -0,0 +1,339 @@
+import java.io.*;
+import java.lang.reflect.Method;
+import java.net.*;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.*;
+
+//Serves a concurrentbplustree over TCP or a Unix domain socket with the command grammar of bplustree.initialize
+//A client sends Insert(key, value), Search(key), Search(startKey, endKey) and Delete(key) lines and gets one line back
+//per command, in the order it sent them: OK for Insert and Delete, the line bplustree.initialize writes for a Search,
+//and Error for a line which isn't a command
+//A client may send many commands without waiting for the answers, the answers of the commands which arrived together
+//are written together once the connection has nothing left to read
+//Each connection is served by its own thread, a virtual thread when the runtime has them
+//Searches run on the connection threads, as the tree lets readers run beside a writer
+//Inserts and deletes of every connection are queued for one writer thread, which applies all the writes waiting
+//in the queue in one go, so writes never contend for the nodes and one wakeup covers a whole batch
+//A Search waits until the writes sent before it on its connection are applied, so a client reads its own writes
+public class bplustreeserver implements Closeable {
+
+	//Connections block in submit when this many writes wait for the writer
+	private final static int MAX_PENDING_WRITES = 1 << 16;
+	private final static int MAX_WRITE_BATCH = 4096;
+	private final static int BUFFER_SIZE = 1 << 16;
+	private final static String OK = "OK";
+	private final static String ERROR = "Error";
+
+	//Thread.ofVirtual() exists from Java 21, it is looked up by reflection so the server also compiles and runs on 17
+	private final static Object VIRTUAL_BUILDER;
+	private final static Method UNSTARTED;
+
+	static {
+		Object builder = null;
+		Method unstarted = null;
+		try {
+			builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			unstarted = Class.forName("java.lang.Thread$Builder").getMethod("unstarted", Runnable.class);
+		}catch(ReflectiveOperationException | RuntimeException e) {
+			//Older runtime, or virtual threads are a preview feature which isn't enabled
+			builder = null;
+			unstarted = null;
+		}
+		VIRTUAL_BUILDER = builder;
+		UNSTARTED = unstarted;
+	}
+
+	private final concurrentbplustree tree;
+	private final ArrayBlockingQueue<Write> writes = new ArrayBlockingQueue<>(MAX_PENDING_WRITES);
+	//Signalled by the writer after every batch
+	private final ReentrantLock appliedLock = new ReentrantLock();
+	private final Condition applied = appliedLock.newCondition();
+	private final Thread writer;
+	private final Set<SocketChannel> connections = ConcurrentHashMap.newKeySet();
+	private ServerSocketChannel server;
+	private Path socketFile;
+	private Thread acceptor;
+	private volatile boolean closed;
+
+	//Only written by the writer thread
+	private volatile long writeBatches;
+	private volatile long appliedWrites;
+
+	//Queued insert or delete, done is set once the writer applied it
+	private static class Write {
+		final boolean insert;
+		final int key;
+		final double value;
+		volatile boolean done;
+
+		Write(boolean insert, int key, double value){
+			this.insert = insert;
+			this.key = key;
+			this.value = value;
+		}
+	}
+
+	//Put in the queue by close, the writer stops after the writes before it
+	private final static Write STOP = new Write(false, 0, 0);
+
+	bplustreeserver(concurrentbplustree tree){
+		this.tree = tree;
+		this.writer = new Thread(this::applyWrites, "bplustree-writer");
+		this.writer.setDaemon(true);
+	}
+
+	//Listen on a TCP address or on a UnixDomainSocketAddress, whose file must not exist yet
+	//Return the bound address, which holds the chosen port when the port is 0
+	public SocketAddress start(SocketAddress address) throws IOException {
+		if(address instanceof UnixDomainSocketAddress) {
+			server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+			socketFile = ((UnixDomainSocketAddress)address).getPath();
+		}else {
+			server = ServerSocketChannel.open();
+		}
+		server.bind(address);
+		writer.start();
+		acceptor = new Thread(this::accept, "bplustree-acceptor");
+		acceptor.setDaemon(true);
+		acceptor.start();
+		return server.getLocalAddress();
+	}
+
+	//Whether connections are served by virtual threads
+	public static boolean virtualThreads() {
+		return VIRTUAL_BUILDER != null;
+	}
+
+	//Number of batches the writer applied, appliedWrites / writeBatches is the average batch size
+	public long writeBatches() {
+		return writeBatches;
+	}
+
+	public long appliedWrites() {
+		return appliedWrites;
+	}
+
+	//Stop accepting, close every connection and stop the writer once it applied the queued writes
+	public void close() throws IOException {
+		if(closed)
+			return;
+		closed = true;
+		server.close();
+		for(SocketChannel connection : connections) {
+			connection.close();
+		}
+		appliedLock.lock();
+		try {
+			applied.signalAll();
+		}finally {
+			appliedLock.unlock();
+		}
+		try {
+			acceptor.join();
+			writes.put(STOP);
+			writer.join();
+		}catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		if(socketFile != null)
+			Files.deleteIfExists(socketFile);
+	}
+
+	private void accept() {
+		while(!closed) {
+			SocketChannel channel;
+			try {
+				channel = server.accept();
+			}catch(IOException e) {
+				//Closed by close
+				return;
+			}
+			connections.add(channel);
+			if(closed) {
+				connections.remove(channel);
+				closeQuietly(channel);
+				return;
+			}
+			newConnectionThread(new Connection(channel)).start();
+		}
+	}
+
+	private static Thread newConnectionThread(Runnable task) {
+		if(VIRTUAL_BUILDER != null) {
+			try {
+				return (Thread)UNSTARTED.invoke(VIRTUAL_BUILDER, task);
+			}catch(ReflectiveOperationException e) {
+				//Fall back to a platform thread
+			}
+		}
+		Thread thread = new Thread(task, "bplustree-connection");
+		thread.setDaemon(true);
+		return thread;
+	}
+
+	private static void closeQuietly(Closeable closeable) {
+		try {
+			closeable.close();
+		}catch(IOException e) {
+			//Nothing left to do with it
+		}
+	}
+
+	//Body of the writer thread: apply every queued write in batches until STOP
+	private void applyWrites() {
+		List<Write> batch = new ArrayList<>(MAX_WRITE_BATCH);
+		boolean stop = false;
+		try {
+			while(!stop) {
+				batch.add(writes.take());
+				writes.drainTo(batch, MAX_WRITE_BATCH - 1);
+				for(Write write : batch) {
+					if(write == STOP) {
+						stop = true;
+						continue;
+					}
+					if(write.insert)
+						tree.insert(write.key, write.value);
+					else
+						tree.delete(write.key);
+					write.done = true;
+				}
+				appliedWrites += batch.size() - (stop ? 1 : 0);
+				writeBatches++;
+				batch.clear();
+				appliedLock.lock();
+				try {
+					applied.signalAll();
+				}finally {
+					appliedLock.unlock();
+				}
+			}
+		}catch(InterruptedException e) {
+			//Not interrupted by the server, stop anyway
+		}
+	}
+
+	//Queue a write for the writer thread, blocking while the queue is full
+	private void submit(Write write) throws InterruptedException {
+		writes.put(write);
+	}
+
+	//Wait until the writer applied a write, or the server is closed
+	private void awaitApplied(Write write) throws InterruptedException {
+		if(write.done)
+			return;
+		appliedLock.lock();
+		try {
+			while(!write.done && !closed) {
+				applied.await();
+			}
+		}finally {
+			appliedLock.unlock();
+		}
+	}
+
+	//One client connection, it reads commands, runs them and answers in order
+	private class Connection implements Runnable {
+
+		private final SocketChannel channel;
+		//Last write sent on this connection, searches and answers wait for it
+		private Write last;
+
+		Connection(SocketChannel channel){
+			this.channel = channel;
+		}
+
+		public void run() {
+			try {
+				BufferedReader in = new BufferedReader(new InputStreamReader(Channels.newInputStream(channel), StandardCharsets.US_ASCII), BUFFER_SIZE);
+				Writer out = new BufferedWriter(new OutputStreamWriter(Channels.newOutputStream(channel), StandardCharsets.US_ASCII), BUFFER_SIZE);
+				String line;
+				while((line = in.readLine()) != null) {
+					out.write(execute(line));
+					out.write("\r\n");
+					//Answer once every command which already arrived has run, OK means the write is in the tree
+					if(!in.ready()) {
+						if(last != null)
+							awaitApplied(last);
+						out.flush();
+					}
+				}
+			}catch(IOException | InterruptedException e) {
+				//The client went away or the server is closing
+			}finally {
+				connections.remove(channel);
+				closeQuietly(channel);
+			}
+		}
+
+		//Run one command line like bplustree.execute, return the answer line
+		private String execute(String line) throws InterruptedException {
+			try {
+				if(isCommand(line, bplustree.instructions[1])) {
+					//Insert(key,value)
+					String[] keyValuePair = arguments(line).split(",");
+					last = new Write(true, Integer.parseInt(keyValuePair[0].trim()), Double.parseDouble(keyValuePair[1].trim()));
+					submit(last);
+					return OK;
+				}else if(isCommand(line, bplustree.instructions[2])) {
+					String arguments = arguments(line);
+					if(last != null)
+						awaitApplied(last);
+					if(arguments.contains(",")) {
+						//Search(startKey, endKey)
+						String[] keyPair = arguments.split(",");
+						return tree.search(Integer.parseInt(keyPair[0].trim()), Integer.parseInt(keyPair[1].trim()));
+					}
+					//Search(key)
+					return tree.search(Integer.parseInt(arguments.trim()));
+				}else if(isCommand(line, bplustree.instructions[3])) {
+					//Delete(key)
+					last = new Write(false, Integer.parseInt(arguments(line).trim()), 0);
+					submit(last);
+					return OK;
+				}
+			}catch(NumberFormatException | IndexOutOfBoundsException e) {
+				//Malformed arguments
+			}
+			return ERROR;
+		}
+
+	}
+
+	private static boolean isCommand(String line, String instruction) {
+		return line.length() > instruction.length() && line.startsWith(instruction);
+	}
+
+	//The text between the opening parenthesis and the last character
+	private static String arguments(String line) {
+		return line.substring(line.indexOf("(") + 1, line.length() - 1);
+	}
+
+	//Parse a TCP port, a host:port pair or unix:path
+	//A port alone listens on the loopback interface only
+	static SocketAddress parseAddress(String address) {
+		if(address.startsWith("unix:"))
+			return UnixDomainSocketAddress.of(address.substring("unix:".length()));
+		int colon = address.lastIndexOf(':');
+		if(colon == -1)
+			return new InetSocketAddress(InetAddress.getLoopbackAddress(), Integer.parseInt(address));
+		return new InetSocketAddress(address.substring(0, colon), Integer.parseInt(address.substring(colon + 1)));
+	}
+
+	//Run with: java bplustreeserver order address, see parseAddress for the address
+	//bplustreebenchmark server runs a load generator against a server on the loopback interface
+	public static void main(String[] args) throws Exception {
+		bplustreeserver server = new bplustreeserver(new concurrentbplustree(Integer.parseInt(args[0])));
+		SocketAddress address = server.start(parseAddress(args[1]));
+		System.out.println("Serving on " + address + " with " + (virtualThreads() ? "virtual" : "platform") + " threads");
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> closeQuietly(server)));
+		while(true) {
+			Thread.sleep(Long.MAX_VALUE);
+		}
+	}
+
+}
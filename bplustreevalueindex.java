@@ -0,0 +1,69 @@
+//Secondary index of a bplustree from values to keys, kept up to date by the tree once bplustree.createValueIndex is called
+//It is a genericbplustree keyed by (value, key) pairs, so the pairs whose values are in a range are found with one
+//descent followed by a scan, instead of a scan of every external node of the primary tree
+//The primary tree may hold the same pair more than once, the index counts how many times
+//Values are ordered like Double.compare does: -0.0 comes before 0.0 and NaN after every other value
+public class bplustreevalueindex {
+
+	private final genericbplustree<Entry, Integer> tree;
+	private long pairs;
+
+	bplustreevalueindex(int order){
+		this.tree = new genericbplustree<>(order);
+	}
+
+	//Key of the index tree
+	static class Entry implements Comparable<Entry> {
+		final double value;
+		final int key;
+
+		Entry(double value, int key){
+			this.value = value;
+			this.key = key;
+		}
+
+		public int compareTo(Entry other) {
+			int result = Double.compare(value, other.value);
+			return result != 0 ? result : Integer.compare(key, other.key);
+		}
+	}
+
+	//Called by the primary tree after it stored a pair
+	void add(double value, int key) {
+		Entry entry = new Entry(value, key);
+		tree.insert(entry, tree.searchValue(entry, 0) + 1);
+		pairs++;
+	}
+
+	//Called by the primary tree after it removed a pair
+	void remove(double value, int key) {
+		Entry entry = new Entry(value, key);
+		int count = tree.searchValue(entry, 0);
+		if(count == 0)
+			return;
+		if(count == 1)
+			tree.delete(entry);
+		else
+			tree.insert(entry, count - 1);
+		pairs--;
+	}
+
+	//Visit the pairs whose values are in [low, high] in ascending order of value, then key
+	//Return the number of visited pairs
+	int search(double low, double high, bplustree.KeyValueVisitor visitor) {
+		int[] visited = new int[1];
+		tree.search(new Entry(low, Integer.MIN_VALUE), new Entry(high, Integer.MAX_VALUE), (entry, count) -> {
+			for(int i = 0; i < count; i++) {
+				visitor.visit(entry.key, entry.value);
+			}
+			visited[0] += count;
+		});
+		return visited[0];
+	}
+
+	//Number of indexed pairs, the same as the number of pairs of the primary tree
+	public long size() {
+		return pairs;
+	}
+
+}
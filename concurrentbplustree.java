@@ -0,0 +1,656 @@
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+//B+ tree which can be shared by many threads without an outside lock
+//Every node carries a version latch and the tree uses optimistic lock coupling:
+//	readers never write to shared memory, they remember the version of every node they pass
+//	and restart when one of them changed before they were done with it
+//	writers lock only the nodes they modify, by moving the version from the one they read to a locked version
+//A full internal node is split on the way down, so a split never has to climb back up the tree
+//Such a split moves one of the order - 1 keys up and leaves (order - 2) / 2 keys on each side, which is only
+//at least ceil(order / 2) - 1 for an even order, so the order must be even
+//A deletion which leaves a node deficient is followed by a top-down fix which borrows or merges one node at a time
+public class concurrentbplustree {
+
+	final int MaxKeyNum;
+	final int MinKeyNum;
+	final int MaxChildrenNum;
+
+	volatile Node root;
+
+	//Layout of a version: bit 0 marks an obsolete node, bit 1 marks a locked node, the other bits count the modifications
+	private final static long OBSOLETE = 1;
+	private final static long LOCKED = 2;
+	//Returned by readLock when the caller has to restart
+	private final static long RESTART = -1;
+
+	private final static VarHandle VERSION;
+
+	static {
+		try {
+			VERSION = MethodHandles.lookup().findVarHandle(Node.class, "version", long.class);
+		} catch (ReflectiveOperationException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+
+	concurrentbplustree(int order){
+		if(order < 4 || order % 2 != 0)
+			throw new IllegalArgumentException("The order must be an even number of at least 4: " + order);
+		this.MaxKeyNum = order - 1;
+		this.MinKeyNum = (int)Math.ceil(((double)order)/2) - 1;
+		this.MaxChildrenNum = order;
+		this.root = new ExternalNode();
+	}
+
+	//Insert a key-value pair, the value of an existing key is replaced
+	public void insert(int key, double value) {
+		restart:
+		while(true) {
+			Node node = root;
+			long version = readLock(node);
+			if(version == RESTART || node != root)
+				continue;
+			InternalNode parent = null;
+			long parentVersion = 0;
+			while(node instanceof InternalNode) {
+				InternalNode inner = (InternalNode)node;
+				if(inner.keyNum == MaxKeyNum) {
+					//Split before going down so the parent of the next level always has room for one more key
+					if(parent != null && !upgrade(parent, parentVersion))
+						continue restart;
+					if(!upgrade(inner, version)) {
+						if(parent != null)
+							unlock(parent);
+						continue restart;
+					}
+					inner.split(parent);
+					unlock(inner);
+					if(parent != null)
+						unlock(parent);
+					continue restart;
+				}
+				Node child = inner.children[upperBound(inner.keys, inner.keyNum, key)];
+				if(child == null || !validate(inner, version))
+					continue restart;
+				long childVersion = readLock(child);
+				if(childVersion == RESTART || !validate(inner, version))
+					continue restart;
+				parent = inner;
+				parentVersion = version;
+				node = child;
+				version = childVersion;
+			}
+			ExternalNode leaf = (ExternalNode)node;
+			if(!upgrade(leaf, version))
+				continue;
+			int index = leaf.indexOf(key);
+			if(index != -1) {
+				leaf.values[index] = value;
+				unlock(leaf);
+				return;
+			}
+			if(leaf.keyNum < MaxKeyNum) {
+				leaf.insertNotFull(key, value);
+				unlock(leaf);
+				return;
+			}
+			//The leaf is full, split it and try again
+			if(parent != null && !upgrade(parent, parentVersion)) {
+				unlock(leaf);
+				continue;
+			}
+			leaf.split(parent);
+			unlock(leaf);
+			if(parent != null)
+				unlock(parent);
+		}
+	}
+
+	//Search for a specified key
+	//It will return "" when the key doesn't exist
+	public String search(int key) {
+		long[] version = new long[1];
+		while(true) {
+			ExternalNode leaf = findLeaf(key, version);
+			int index = leaf.indexOf(key);
+			double value = index == -1 ? 0 : leaf.values[index];
+			if(!validate(leaf, version[0]))
+				continue;
+			return index == -1 ? "" : Double.toString(value);
+		}
+	}
+
+	//Return the value of a key, or notFound when the key doesn't exist
+	//The descent of findLeaf is repeated here so the lookup allocates nothing
+	public double searchValue(int key, double notFound) {
+		restart:
+		while(true) {
+			Node node = root;
+			long version = readLock(node);
+			if(version == RESTART || node != root)
+				continue;
+			while(node instanceof InternalNode) {
+				InternalNode inner = (InternalNode)node;
+				Node child = inner.children[upperBound(inner.keys, inner.keyNum, key)];
+				if(child == null || !validate(inner, version))
+					continue restart;
+				long childVersion = readLock(child);
+				if(childVersion == RESTART || !validate(inner, version))
+					continue restart;
+				node = child;
+				version = childVersion;
+			}
+			ExternalNode leaf = (ExternalNode)node;
+			int index = leaf.indexOf(key);
+			double value = index == -1 ? notFound : leaf.values[index];
+			if(!validate(leaf, version))
+				continue;
+			return value;
+		}
+	}
+
+	//Return the external node which may contain the key and store the version it was read at
+	private ExternalNode findLeaf(int key, long[] versionOut) {
+		restart:
+		while(true) {
+			Node node = root;
+			long version = readLock(node);
+			if(version == RESTART || node != root)
+				continue;
+			while(node instanceof InternalNode) {
+				InternalNode inner = (InternalNode)node;
+				Node child = inner.children[upperBound(inner.keys, inner.keyNum, key)];
+				if(child == null || !validate(inner, version))
+					continue restart;
+				long childVersion = readLock(child);
+				if(childVersion == RESTART || !validate(inner, version))
+					continue restart;
+				node = child;
+				version = childVersion;
+			}
+			versionOut[0] = version;
+			return (ExternalNode)node;
+		}
+	}
+
+	//Range search
+	//It will return "" when there is no key in the range
+	public String search(int startKey, int endKey) {
+		StringBuilder sb = new StringBuilder();
+		search(startKey, endKey, (key, value) -> {
+			if(sb.length() != 0)
+				sb.append(",");
+			sb.append(value);
+		});
+		return sb.toString();
+	}
+
+	//Range search which streams every key-value pair in [startKey, endKey] to the visitor in key order
+	//Each external node is copied and validated before its pairs are handed out
+	//When a node changed, the scan restarts from the root at the key after the last visited one,
+	//so every key present during the whole scan is visited exactly once
+	public int search(int startKey, int endKey, bplustree.KeyValueVisitor visitor) {
+		if(startKey > endKey)
+			return 0;
+		int[] keyBuffer = new int[MaxKeyNum];
+		double[] valueBuffer = new double[MaxKeyNum];
+		int count = 0;
+		long lower = startKey;
+		long[] leafVersion = new long[1];
+		restart:
+		while(true) {
+			ExternalNode leaf = findLeaf((int)lower, leafVersion);
+			long version = leafVersion[0];
+			while(true) {
+				int n = leaf.keyNum;
+				System.arraycopy(leaf.keys, 0, keyBuffer, 0, n);
+				System.arraycopy(leaf.values, 0, valueBuffer, 0, n);
+				ExternalNode next = leaf.after;
+				if(!validate(leaf, version))
+					continue restart;
+				for(int i = 0; i < n; i++) {
+					if(keyBuffer[i] < lower)
+						continue;
+					if(keyBuffer[i] > endKey)
+						return count;
+					visitor.visit(keyBuffer[i], valueBuffer[i]);
+					count++;
+					lower = (long)keyBuffer[i] + 1;
+				}
+				if(next == null || lower > endKey)
+					return count;
+				//Couple the next node with the current one, so no key can move from next into the visited part unnoticed
+				long nextVersion = readLock(next);
+				if(nextVersion == RESTART || !validate(leaf, version))
+					continue restart;
+				leaf = next;
+				version = nextVersion;
+			}
+		}
+	}
+
+	//Delete a key
+	//It will do nothing when the key isn't found
+	public void delete(int key) {
+		long[] leafVersion = new long[1];
+		while(true) {
+			ExternalNode leaf = findLeaf(key, leafVersion);
+			long version = leafVersion[0];
+			int index = leaf.indexOf(key);
+			if(index == -1) {
+				if(!validate(leaf, version))
+					continue;
+				return;
+			}
+			if(!upgrade(leaf, version))
+				continue;
+			leaf.deleteAt(index);
+			boolean deficient = leaf.keyNum < MinKeyNum && leaf != root;
+			unlock(leaf);
+			if(deficient)
+				fixDeficientNodes(key);
+			return;
+		}
+	}
+
+	//Walk down the path of a key and fix the highest deficient node by borrowing from or merging with a sibling
+	//A merge can make the parent deficient, so the walk is repeated until the path has no deficient node
+	private void fixDeficientNodes(int key) {
+		restart:
+		while(true) {
+			Node node = root;
+			long version = readLock(node);
+			if(version == RESTART || node != root)
+				continue;
+			while(node instanceof InternalNode) {
+				InternalNode inner = (InternalNode)node;
+				int keyNum = inner.keyNum;
+				int index = upperBound(inner.keys, keyNum, key);
+				Node child = inner.children[index];
+				if(child == null || !validate(inner, version))
+					continue restart;
+				long childVersion = readLock(child);
+				if(childVersion == RESTART || !validate(inner, version))
+					continue restart;
+				if(child.keyNum < MinKeyNum) {
+					//A node without keys has no sibling to work with, it is fixed when its own parent is
+					if(keyNum == 0)
+						return;
+					int siblingIndex = index == 0 ? 1 : index - 1;
+					Node sibling = inner.children[siblingIndex];
+					if(sibling == null || !validate(inner, version))
+						continue restart;
+					long siblingVersion = readLock(sibling);
+					if(siblingVersion == RESTART)
+						continue restart;
+					if(!upgrade(inner, version))
+						continue restart;
+					if(!upgrade(child, childVersion)) {
+						unlock(inner);
+						continue restart;
+					}
+					if(!upgrade(sibling, siblingVersion)) {
+						unlock(child);
+						unlock(inner);
+						continue restart;
+					}
+					borrowOrMerge(inner, Math.min(index, siblingIndex));
+					continue restart;
+				}
+				node = child;
+				version = childVersion;
+			}
+			return;
+		}
+	}
+
+	//Rebalance the children at index and index + 1 of a parent, all three nodes are locked by the caller
+	//The nodes are unlocked here, a node removed by a merge is marked obsolete
+	private void borrowOrMerge(InternalNode parent, int index) {
+		Node left = parent.children[index];
+		Node right = parent.children[index + 1];
+		if(left.keyNum < MinKeyNum && right.keyNum > MinKeyNum) {
+			left.borrowFromRight(parent, index, right);
+		}else if(right.keyNum < MinKeyNum && left.keyNum > MinKeyNum) {
+			right.borrowFromLeft(parent, index, left);
+		}else {
+			left.mergeWithRight(parent, index, right);
+			unlockObsolete(right);
+			if(parent == root && parent.keyNum == 0) {
+				//The root lost its last key, the merged node becomes the new root
+				root = left;
+				unlock(left);
+				unlockObsolete(parent);
+				return;
+			}
+			unlock(left);
+			unlock(parent);
+			return;
+		}
+		unlock(left);
+		unlock(right);
+		unlock(parent);
+	}
+
+	//Wait until the node is unlocked and return its version
+	//It returns RESTART when the node was removed from the tree
+	private static long readLock(Node node) {
+		long version = node.version;
+		while((version & LOCKED) != 0) {
+			Thread.onSpinWait();
+			version = node.version;
+		}
+		if((version & OBSOLETE) != 0)
+			return RESTART;
+		return version;
+	}
+
+	//Check that nothing read from the node since readLock has been changed
+	private static boolean validate(Node node, long version) {
+		VarHandle.acquireFence();
+		return node.version == version;
+	}
+
+	//Lock a node, it fails when the node changed since the version was read
+	//It never waits, so a thread holding locks can't deadlock with another one
+	private static boolean upgrade(Node node, long version) {
+		return VERSION.compareAndSet(node, version, version + LOCKED);
+	}
+
+	private static void unlock(Node node) {
+		node.version = node.version + LOCKED;
+	}
+
+	private static void unlockObsolete(Node node) {
+		node.version = node.version + LOCKED + OBSOLETE;
+	}
+
+	//Same as bplustree.upperBound with the HYBRID strategy
+	//keyNum is read once by the caller, so a torn read still yields an index inside the node
+	private static int upperBound(int[] keys, int keyNum, int key) {
+		if(keyNum <= bplustree.LINEAR_SCAN_LIMIT)
+			return bplustree.linearUpperBound(keys, keyNum, key);
+		return bplustree.binaryUpperBound(keys, keyNum, key);
+	}
+
+	//Super class for InternalNode and ExternalNode
+	abstract class Node {
+		volatile long version;
+		int keyNum;
+		int[] keys;
+
+		//The separator of the parent is passed in, it moves down into the node for internal nodes
+		abstract void borrowFromLeft(InternalNode parent, int index, Node sibling);
+		abstract void borrowFromRight(InternalNode parent, int index, Node sibling);
+		abstract void mergeWithRight(InternalNode parent, int index, Node sibling);
+	}
+
+	//Internal node of the B+ tree
+	class InternalNode extends Node {
+
+		Node[] children;
+
+		InternalNode(){
+			super.keyNum = 0;
+			super.keys = new int[MaxKeyNum];
+			this.children = new Node[MaxChildrenNum];
+		}
+
+		//Split a full node and insert the middle key into the parent, both are locked by the caller
+		//The parent is null when the node is the root
+		//As the order is even, both halves keep MinKeyNum keys
+		void split(InternalNode parent) {
+			InternalNode sibling = new InternalNode();
+			int middle = keyNum / 2;
+			int newKeyForParent = keys[middle];
+			sibling.keyNum = keyNum - middle - 1;
+			System.arraycopy(keys, middle + 1, sibling.keys, 0, sibling.keyNum);
+			System.arraycopy(children, middle + 1, sibling.children, 0, sibling.keyNum + 1);
+			Arrays.fill(children, middle + 1, keyNum + 1, null);
+			keyNum = middle;
+			addToParent(parent, this, newKeyForParent, sibling);
+		}
+
+		//Insert a key and the child on its right into a node which isn't full
+		void insertNotFull(int key, Node child) {
+			int index = upperBound(keys, keyNum, key);
+			System.arraycopy(keys, index, keys, index + 1, keyNum - index);
+			System.arraycopy(children, index + 1, children, index + 2, keyNum - index);
+			keys[index] = key;
+			children[index + 1] = child;
+			keyNum++;
+		}
+
+		//Remove the key at index and the child on its right
+		void removeAt(int index) {
+			System.arraycopy(keys, index + 1, keys, index, keyNum - index - 1);
+			System.arraycopy(children, index + 2, children, index + 1, keyNum - index - 1);
+			children[keyNum] = null;
+			keyNum--;
+		}
+
+		void borrowFromLeft(InternalNode parent, int index, Node node) {
+			InternalNode sibling = (InternalNode)node;
+			System.arraycopy(keys, 0, keys, 1, keyNum);
+			System.arraycopy(children, 0, children, 1, keyNum + 1);
+			keys[0] = parent.keys[index];
+			children[0] = sibling.children[sibling.keyNum];
+			keyNum++;
+			parent.keys[index] = sibling.keys[sibling.keyNum - 1];
+			sibling.children[sibling.keyNum] = null;
+			sibling.keyNum--;
+		}
+
+		void borrowFromRight(InternalNode parent, int index, Node node) {
+			InternalNode sibling = (InternalNode)node;
+			keys[keyNum] = parent.keys[index];
+			children[keyNum + 1] = sibling.children[0];
+			keyNum++;
+			parent.keys[index] = sibling.keys[0];
+			System.arraycopy(sibling.keys, 1, sibling.keys, 0, sibling.keyNum - 1);
+			System.arraycopy(sibling.children, 1, sibling.children, 0, sibling.keyNum);
+			sibling.children[sibling.keyNum] = null;
+			sibling.keyNum--;
+		}
+
+		void mergeWithRight(InternalNode parent, int index, Node node) {
+			InternalNode sibling = (InternalNode)node;
+			keys[keyNum] = parent.keys[index];
+			System.arraycopy(sibling.keys, 0, keys, keyNum + 1, sibling.keyNum);
+			System.arraycopy(sibling.children, 0, children, keyNum + 1, sibling.keyNum + 1);
+			keyNum += 1 + sibling.keyNum;
+			parent.removeAt(index);
+		}
+
+	}
+
+	//Leaf node or external node of the B+ tree
+	class ExternalNode extends Node {
+
+		double[] values;
+		ExternalNode after;
+
+		ExternalNode(){
+			super.keyNum = 0;
+			super.keys = new int[MaxKeyNum];
+			this.values = new double[MaxKeyNum];
+			this.after = null;
+		}
+
+		//Return the position of a key, or -1 when the key doesn't exist
+		int indexOf(int key) {
+			int index = upperBound(keys, keyNum, key) - 1;
+			if(index >= 0 && keys[index] == key)
+				return index;
+			return -1;
+		}
+
+		void insertNotFull(int key, double value) {
+			int index = upperBound(keys, keyNum, key);
+			System.arraycopy(keys, index, keys, index + 1, keyNum - index);
+			System.arraycopy(values, index, values, index + 1, keyNum - index);
+			keys[index] = key;
+			values[index] = value;
+			keyNum++;
+		}
+
+		void deleteAt(int index) {
+			System.arraycopy(keys, index + 1, keys, index, keyNum - index - 1);
+			System.arraycopy(values, index + 1, values, index, keyNum - index - 1);
+			keyNum--;
+		}
+
+		//Move the upper half into a new right sibling, the node and the parent are locked by the caller
+		void split(InternalNode parent) {
+			ExternalNode sibling = new ExternalNode();
+			int half = keyNum / 2;
+			sibling.keyNum = keyNum - half;
+			System.arraycopy(keys, half, sibling.keys, 0, sibling.keyNum);
+			System.arraycopy(values, half, sibling.values, 0, sibling.keyNum);
+			sibling.after = after;
+			keyNum = half;
+			after = sibling;
+			addToParent(parent, this, sibling.keys[0], sibling);
+		}
+
+		void borrowFromLeft(InternalNode parent, int index, Node node) {
+			ExternalNode sibling = (ExternalNode)node;
+			insertNotFull(sibling.keys[sibling.keyNum - 1], sibling.values[sibling.keyNum - 1]);
+			sibling.keyNum--;
+			parent.keys[index] = keys[0];
+		}
+
+		void borrowFromRight(InternalNode parent, int index, Node node) {
+			ExternalNode sibling = (ExternalNode)node;
+			insertNotFull(sibling.keys[0], sibling.values[0]);
+			sibling.deleteAt(0);
+			parent.keys[index] = sibling.keys[0];
+		}
+
+		void mergeWithRight(InternalNode parent, int index, Node node) {
+			ExternalNode sibling = (ExternalNode)node;
+			System.arraycopy(sibling.keys, 0, keys, keyNum, sibling.keyNum);
+			System.arraycopy(sibling.values, 0, values, keyNum, sibling.keyNum);
+			keyNum += sibling.keyNum;
+			after = sibling.after;
+			parent.removeAt(index);
+		}
+
+	}
+
+	//Publish the new right sibling of a split node
+	//When the split node is the root a new root is generated, the old root is locked so no one else can do the same
+	private void addToParent(InternalNode parent, Node node, int key, Node sibling) {
+		if(parent == null) {
+			InternalNode newRoot = new InternalNode();
+			newRoot.keyNum = 1;
+			newRoot.keys[0] = key;
+			newRoot.children[0] = node;
+			newRoot.children[1] = sibling;
+			root = newRoot;
+		}else {
+			parent.insertNotFull(key, sibling);
+		}
+	}
+
+	//Run writer threads which own disjoint key sets next to reader threads doing range searches
+	//Every writer checks its own keys against a ConcurrentSkipListMap, at the end the whole tree is compared
+	private static void stressTest(int order, int threads, int operations) throws InterruptedException {
+		concurrentbplustree tree = new concurrentbplustree(order);
+		ConcurrentSkipListMap<Integer, Double> expected = new ConcurrentSkipListMap<>();
+		int keySpace = Math.max(1000, operations / 4);
+		AtomicBoolean running = new AtomicBoolean(true);
+		List<Throwable> failures = new CopyOnWriteArrayList<>();
+		List<Thread> writers = new ArrayList<>();
+		for(int t = 0; t < threads; t++) {
+			final int id = t;
+			writers.add(new Thread(() -> {
+				try {
+					Random random = new Random(id);
+					for(int i = 0; i < operations; i++) {
+						int key = random.nextInt(keySpace) * threads + id;
+						int op = random.nextInt(10);
+						if(op < 5) {
+							//The value encodes its key, so readers can check what they see
+							double value = key * 1024.0 + (i & 1023);
+							tree.insert(key, value);
+							expected.put(key, value);
+						}else if(op < 8) {
+							tree.delete(key);
+							expected.remove(key);
+						}else {
+							Double value = expected.get(key);
+							String result = tree.search(key);
+							if(!result.equals(value == null ? "" : value.toString()))
+								throw new AssertionError("Search(" + key + ") returned " + result + " instead of " + value);
+						}
+					}
+				} catch (Throwable e) {
+					failures.add(e);
+				}
+			}));
+		}
+		List<Thread> readers = new ArrayList<>();
+		for(int t = 0; t < threads; t++) {
+			final int id = t;
+			readers.add(new Thread(() -> {
+				try {
+					Random random = new Random(-id - 1);
+					while(running.get()) {
+						int startKey = random.nextInt(keySpace * threads);
+						int endKey = startKey + random.nextInt(keySpace);
+						long[] last = {Long.MIN_VALUE};
+						tree.search(startKey, endKey, (key, value) -> {
+							if(key < startKey || key > endKey || key <= last[0])
+								throw new AssertionError("Range search returned " + key + " after " + last[0]);
+							if(Math.floor(value / 1024.0) != key)
+								throw new AssertionError("Key " + key + " has the value of another key " + value);
+							last[0] = key;
+						});
+					}
+				} catch (Throwable e) {
+					failures.add(e);
+				}
+			}));
+		}
+		long start = System.nanoTime();
+		for(Thread thread : readers)
+			thread.start();
+		for(Thread thread : writers)
+			thread.start();
+		for(Thread thread : writers)
+			thread.join();
+		running.set(false);
+		for(Thread thread : readers)
+			thread.join();
+		long elapsed = System.nanoTime() - start;
+		if(failures.isEmpty()) {
+			Iterator<Map.Entry<Integer, Double>> entries = expected.entrySet().iterator();
+			tree.search(Integer.MIN_VALUE, Integer.MAX_VALUE, (key, value) -> {
+				Map.Entry<Integer, Double> entry = entries.hasNext() ? entries.next() : null;
+				if(entry == null || entry.getKey() != key || entry.getValue() != value)
+					throw new AssertionError("The tree has " + key + "(" + value + ") where the map has " + entry);
+			});
+			if(entries.hasNext())
+				throw new AssertionError("The tree misses " + entries.next());
+		}
+		for(Throwable failure : failures)
+			failure.printStackTrace();
+		System.out.printf("order %d, %d writers, %d readers: %s, %d keys left, %.1f ms%n", order, threads, threads,
+				failures.isEmpty() ? "passed" : "FAILED", expected.size(), elapsed / 1e6);
+		if(!failures.isEmpty())
+			throw new AssertionError("Stress test failed");
+	}
+
+	public static void main(String[] args) throws InterruptedException {
+		int threads = Math.max(2, Runtime.getRuntime().availableProcessors() / 2);
+		for(int order : new int[] {4, 6, 8, 64}) {
+			stressTest(order, threads, 200000);
+		}
+	}
+
+}
@@ -0,0 +1,424 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.zip.*;
+
+//bplustree whose inserts and deletes survive a crash
+//Every mutation is appended to a write-ahead log before it is applied to the tree
+//A flusher thread writes and forces everything appended since its last force,
+//so all the mutations waiting for durability at the same time share one fsync (group commit)
+//A checkpoint writes the whole tree to a snapshot and starts a new log segment,
+//recovery loads the snapshot and replays the log records which came after it
+//The tree is only accessed while holding its monitor, so one durablebplustree can be shared by threads
+public class durablebplustree implements Closeable {
+
+	//Log record: type, lsn, key, value and the CRC32 of the fields before it
+	private final static int RECORD_SIZE = 1 + 8 + 4 + 8 + 4;
+	private final static byte INSERT = 1;
+	private final static byte DELETE = 2;
+
+	//Checkpoints are bplustree snapshots whose sequence is the lsn of the last record they hold
+	private final static String CHECKPOINT_FILE = "checkpoint";
+	private final static String SEGMENT_PREFIX = "wal-";
+	private final static String SEGMENT_SUFFIX = ".log";
+	//The tree rebuilt from a checkpoint leaves room in its nodes for the inserts which follow
+	private final static double CHECKPOINT_FILL_FACTOR = 0.8;
+	//Appenders wait for the flusher when this many bytes are waiting to be written
+	private final static int MAX_PENDING_BYTES = 1 << 20;
+
+	private final bplustree tree;
+	private final Path directory;
+	private final int order;
+	private final boolean syncCommit;
+	private final long flushIntervalMillis;
+	private final long checkpointInterval;
+
+	//Guards the log state below, it is never held while waiting for the monitor of the tree
+	private final Object logLock = new Object();
+	private ByteBuffer pending = ByteBuffer.allocate(MAX_PENDING_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+	private ByteBuffer writing = ByteBuffer.allocate(MAX_PENDING_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+	//Records promised room in pending by reserve but not appended yet
+	private int reserved;
+	private final CRC32 crc = new CRC32();
+	private long lastLsn;
+	private long durableLsn;
+	private long checkpointLsn;
+	private long recordsSinceCheckpoint;
+	private boolean checkpointRequested;
+	private boolean closed;
+	private IOException failure;
+	private long syncs;
+
+	//Only used by the flusher thread after construction
+	private FileChannel segment;
+	private final Thread flusher;
+
+	//Recover the tree stored in a directory, or start an empty one
+	//Commits wait for their fsync and a checkpoint is taken every 1M mutations
+	durablebplustree(Path directory, int order) throws IOException {
+		this(directory, order, true, 0, 1 << 20);
+	}
+
+	//syncCommit: insert and delete return only when their log record is on disk, otherwise call sync
+	//flushIntervalMillis: how long the flusher waits to gather more records for one fsync
+	//checkpointInterval: number of mutations after which a checkpoint is taken, 0 for manual checkpoints only
+	durablebplustree(Path directory, int order, boolean syncCommit, long flushIntervalMillis, long checkpointInterval) throws IOException {
+		this.directory = directory;
+		this.order = order;
+		this.syncCommit = syncCommit;
+		this.flushIntervalMillis = flushIntervalMillis;
+		this.checkpointInterval = checkpointInterval;
+		Files.createDirectories(directory);
+		this.tree = recover();
+		this.segment = openSegment(lastLsn + 1);
+		this.flusher = new Thread(this::runFlusher, "bplustree-wal");
+		this.flusher.setDaemon(true);
+		this.flusher.start();
+	}
+
+	public void insert(int key, double value) throws IOException {
+		long lsn;
+		reserve();
+		synchronized(tree) {
+			lsn = append(INSERT, key, value);
+			apply(INSERT, key, value);
+		}
+		if(syncCommit)
+			waitDurable(lsn);
+	}
+
+	public void delete(int key) throws IOException {
+		long lsn;
+		reserve();
+		synchronized(tree) {
+			lsn = append(DELETE, key, 0);
+			apply(DELETE, key, 0);
+		}
+		if(syncCommit)
+			waitDurable(lsn);
+	}
+
+	public String search(int key) {
+		synchronized(tree) {
+			return tree.search(key);
+		}
+	}
+
+	public String search(int startKey, int endKey) {
+		synchronized(tree) {
+			return tree.search(startKey, endKey);
+		}
+	}
+
+	public int search(int startKey, int endKey, bplustree.KeyValueVisitor visitor) {
+		synchronized(tree) {
+			return tree.search(startKey, endKey, visitor);
+		}
+	}
+
+	//Wait until every mutation made so far is on disk
+	public void sync() throws IOException {
+		long lsn;
+		synchronized(logLock) {
+			lsn = lastLsn;
+		}
+		waitDurable(lsn);
+	}
+
+	//Take a checkpoint now and wait for it
+	public void checkpoint() throws IOException {
+		synchronized(logLock) {
+			checkpointRequested = true;
+			logLock.notifyAll();
+			while(checkpointRequested && failure == null && !closed) {
+				waitOn(logLock);
+			}
+			checkIfFailed();
+		}
+	}
+
+	//Number of fsyncs done for the log, each one made a group of mutations durable
+	public long syncCount() {
+		synchronized(logLock) {
+			return syncs;
+		}
+	}
+
+	public void close() throws IOException {
+		synchronized(logLock) {
+			closed = true;
+			logLock.notifyAll();
+		}
+		try {
+			flusher.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		segment.close();
+		synchronized(logLock) {
+			checkIfFailed();
+		}
+	}
+
+	//Inserting an existing key replaces its value, so a checkpoint never holds the same key twice
+	private void apply(byte type, int key, double value) {
+		if(type == INSERT) {
+			if(tree.search(key, key, (k, v) -> {}) != 0)
+				tree.delete(key);
+			tree.insert(key, value);
+		}else {
+			tree.delete(key);
+		}
+	}
+
+	//Wait until the pending buffer has room for one more record and reserve it
+	//It is called before taking the monitor of the tree: a checkpoint holds that monitor while it flushes,
+	//so a thread waiting for room with the monitor held would wait for the flusher which waits for it
+	private void reserve() throws IOException {
+		synchronized(logLock) {
+			while(pending.remaining() < (reserved + 1) * RECORD_SIZE && failure == null && !closed) {
+				logLock.notifyAll();
+				waitOn(logLock);
+			}
+			checkIfFailed();
+			if(closed)
+				throw new IOException("The tree is closed");
+			reserved++;
+		}
+	}
+
+	//Append a record to the pending buffer in the room reserve made for it and return its lsn
+	//The caller holds the monitor of the tree
+	private long append(byte type, int key, double value) throws IOException {
+		synchronized(logLock) {
+			reserved--;
+			checkIfFailed();
+			if(closed)
+				throw new IOException("The tree is closed");
+			long lsn = ++lastLsn;
+			int start = pending.position();
+			pending.put(type);
+			pending.putLong(lsn);
+			pending.putInt(key);
+			pending.putDouble(value);
+			crc.reset();
+			crc.update(pending.array(), start, RECORD_SIZE - 4);
+			pending.putInt((int)crc.getValue());
+			recordsSinceCheckpoint++;
+			logLock.notifyAll();
+			return lsn;
+		}
+	}
+
+	private void waitDurable(long lsn) throws IOException {
+		synchronized(logLock) {
+			while(durableLsn < lsn && failure == null) {
+				waitOn(logLock);
+			}
+			checkIfFailed();
+		}
+	}
+
+	private void checkIfFailed() throws IOException {
+		if(failure != null)
+			throw new IOException("The write-ahead log failed", failure);
+	}
+
+	private static void waitOn(Object lock) throws InterruptedIOException {
+		try {
+			lock.wait();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		}
+	}
+
+	//Body of the flusher thread
+	//It swaps the pending buffer with an empty one, writes it and forces the segment, then wakes up the waiting committers
+	private void runFlusher() {
+		try {
+			while(true) {
+				boolean checkpoint;
+				synchronized(logLock) {
+					while(pending.position() == 0 && !checkpointRequested && !closed
+							&& !(checkpointInterval > 0 && recordsSinceCheckpoint >= checkpointInterval)) {
+						logLock.wait();
+					}
+					//Give more committers the chance to join this fsync
+					long deadline = System.currentTimeMillis() + flushIntervalMillis;
+					long remaining = flushIntervalMillis;
+					while(remaining > 0 && !closed && !checkpointRequested && pending.remaining() >= (reserved + 1) * RECORD_SIZE) {
+						logLock.wait(remaining);
+						remaining = deadline - System.currentTimeMillis();
+					}
+					checkpoint = checkpointRequested || (checkpointInterval > 0 && recordsSinceCheckpoint >= checkpointInterval);
+					if(!checkpoint && pending.position() == 0 && closed)
+						return;
+				}
+				if(checkpoint)
+					writeCheckpoint();
+				else
+					flushPending();
+			}
+		} catch (IOException | RuntimeException e) {
+			synchronized(logLock) {
+				failure = e instanceof IOException ? (IOException)e : new IOException(e);
+				logLock.notifyAll();
+			}
+		} catch (InterruptedException e) {
+			synchronized(logLock) {
+				failure = new InterruptedIOException("The flusher was interrupted");
+				logLock.notifyAll();
+			}
+		}
+	}
+
+	//Write and force every pending record
+	private void flushPending() throws IOException {
+		long lsn;
+		synchronized(logLock) {
+			ByteBuffer tmp = pending;
+			pending = writing;
+			writing = tmp;
+			lsn = lastLsn;
+			logLock.notifyAll();
+		}
+		writing.flip();
+		while(writing.hasRemaining()) {
+			segment.write(writing);
+		}
+		writing.clear();
+		segment.force(false);
+		synchronized(logLock) {
+			durableLsn = lsn;
+			syncs++;
+			logLock.notifyAll();
+		}
+	}
+
+	//Copy the tree while holding its monitor, make the log durable up to that point and start a new segment
+	//The copy is written to a temporary file which replaces the old checkpoint, then the covered segments are deleted
+	private void writeCheckpoint() throws IOException {
+		int[] keys;
+		double[] values;
+		long lsn;
+		synchronized(tree) {
+			int[] count = new int[1];
+			tree.search(Integer.MIN_VALUE, Integer.MAX_VALUE, (key, value) -> count[0]++);
+			keys = new int[count[0]];
+			values = new double[count[0]];
+			count[0] = 0;
+			tree.search(Integer.MIN_VALUE, Integer.MAX_VALUE, (key, value) -> {
+				keys[count[0]] = key;
+				values[count[0]] = value;
+				count[0]++;
+			});
+			synchronized(logLock) {
+				lsn = lastLsn;
+				recordsSinceCheckpoint = 0;
+			}
+			flushPending();
+		}
+		segment.close();
+		segment = openSegment(lsn + 1);
+		Path tmp = directory.resolve(CHECKPOINT_FILE + ".tmp");
+		bplustree.writeSnapshot(tmp, new bplustree.ArraySource(keys, values), order, order, lsn);
+		Files.move(tmp, directory.resolve(CHECKPOINT_FILE), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		for(long start : segmentStarts()) {
+			if(start <= lsn)
+				Files.deleteIfExists(segmentPath(start));
+		}
+		synchronized(logLock) {
+			checkpointLsn = lsn;
+			checkpointRequested = false;
+			logLock.notifyAll();
+		}
+	}
+
+	//Load the checkpoint and replay the log records after it
+	//Replay stops at the first torn or corrupt record, which is where the last run crashed,
+	//the log is cut there and the new run continues in a new segment
+	private bplustree recover() throws IOException {
+		bplustree recovered = new bplustree(order);
+		Path checkpointPath = directory.resolve(CHECKPOINT_FILE);
+		if(Files.exists(checkpointPath)) {
+			try(bplustree.SnapshotReader reader = new bplustree.SnapshotReader(checkpointPath)) {
+				checkpointLsn = reader.sequence;
+				recovered = reader.load(recovered, CHECKPOINT_FILL_FACTOR);
+			}
+		}
+		lastLsn = checkpointLsn;
+		ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		CRC32 checksum = new CRC32();
+		boolean torn = false;
+		for(long start : segmentStarts()) {
+			//Everything after a torn record was never acknowledged, drop it so the next recovery can't see it either
+			if(torn) {
+				Files.delete(segmentPath(start));
+				continue;
+			}
+			try(FileChannel channel = FileChannel.open(segmentPath(start), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+				long position = 0;
+				while(true) {
+					record.clear();
+					while(record.hasRemaining() && channel.read(record, position + record.position()) >= 0) {
+					}
+					if(record.position() == 0)
+						break;
+					checksum.reset();
+					checksum.update(record.array(), 0, RECORD_SIZE - 4);
+					long lsn = record.getLong(1);
+					if(record.hasRemaining() || record.getInt(RECORD_SIZE - 4) != (int)checksum.getValue() || lsn > lastLsn + 1) {
+						channel.truncate(position);
+						torn = true;
+						break;
+					}
+					position += RECORD_SIZE;
+					if(lsn <= lastLsn)
+						continue;
+					lastLsn = lsn;
+					int key = record.getInt(9);
+					if(record.get(0) == INSERT) {
+						if(recovered.search(key, key, (k, v) -> {}) != 0)
+							recovered.delete(key);
+						recovered.insert(key, record.getDouble(13));
+					}else {
+						recovered.delete(key);
+					}
+				}
+			}
+		}
+		durableLsn = lastLsn;
+		return recovered;
+	}
+
+	//Start lsn of every log segment in the directory, in increasing order
+	private long[] segmentStarts() throws IOException {
+		List<Long> starts = new ArrayList<>();
+		try(DirectoryStream<Path> files = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+			for(Path file : files) {
+				String name = file.getFileName().toString();
+				starts.add(Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())));
+			}
+		}
+		long[] result = new long[starts.size()];
+		for(int i = 0; i < result.length; i++) {
+			result[i] = starts.get(i);
+		}
+		Arrays.sort(result);
+		return result;
+	}
+
+	private Path segmentPath(long startLsn) {
+		return directory.resolve(String.format("%s%020d%s", SEGMENT_PREFIX, startLsn, SEGMENT_SUFFIX));
+	}
+
+	//A new segment is never appended to an old one, whose tail may be torn
+	private FileChannel openSegment(long startLsn) throws IOException {
+		return FileChannel.open(segmentPath(startLsn), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+	}
+
+}
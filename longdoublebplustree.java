@@ -0,0 +1,493 @@
+//Generated by bplustreegenerator from bplustree.template, edit the template and run the generator instead
+import java.util.*;
+
+//B+ tree from long keys to double values
+//Keys and values live in primitive arrays and every method takes and returns primitives, so nothing is boxed
+//The nodes are split, borrowed from and merged like the InternalNode and ExternalNode of bplustree
+//Inserting an existing key replaces its value
+public class longdoublebplustree {
+
+	final int MaxKeyNum;
+	final int MinKeyNum;
+	final int MaxChildrenNum;
+
+	//Nodes holding at most this many keys are scanned linearly, larger ones are binary searched
+	final static int LINEAR_SCAN_LIMIT = 32;
+
+	Node root;
+	private int size;
+
+	longdoublebplustree(int order){
+		if(order < 3)
+			throw new IllegalArgumentException("The order must be at least 3: " + order);
+		this.MaxKeyNum = order - 1;
+		this.MinKeyNum = (int)Math.ceil(((double)order)/2) - 1;
+		this.MaxChildrenNum = order;
+		this.root = new ExternalNode();
+	}
+
+	//Insert a key-value pair, the value of an existing key is replaced
+	public void insert(long key, double value) {
+		ExternalNode leaf = root.findLeaf(key);
+		int index = leaf.indexOf(key);
+		if(index != -1) {
+			leaf.values[index] = value;
+			return;
+		}
+		leaf.insert(key, value);
+		size++;
+	}
+
+	public boolean contains(long key) {
+		return root.findLeaf(key).indexOf(key) != -1;
+	}
+
+	//Return the value of a key, or notFound when the key doesn't exist
+	public double searchValue(long key, double notFound) {
+		ExternalNode leaf = root.findLeaf(key);
+		int index = leaf.indexOf(key);
+		return index == -1 ? notFound : leaf.values[index];
+	}
+
+	//Range search which streams every key-value pair in [startKey, endKey] to the visitor in key order
+	//Return the number of visited pairs
+	public int search(long startKey, long endKey, KeyValueVisitor visitor) {
+		if(startKey > endKey)
+			return 0;
+		return root.findLeaf(startKey).scan(startKey, endKey, visitor);
+	}
+
+	//Delete a key
+	//It will do nothing when the key isn't found
+	public void delete(long key) {
+		ExternalNode leaf = root.findLeaf(key);
+		if(leaf.indexOf(key) == -1)
+			return;
+		leaf.delete(key);
+		size--;
+	}
+
+	//Number of keys in the tree
+	public int size() {
+		return size;
+	}
+
+	//Receives the key-value pairs of a range search in ascending key order
+	interface KeyValueVisitor {
+		void visit(long key, double value);
+	}
+
+	//Return the number of keys in keys[0, keyNum) which are not larger than the given key
+	//For an internal node it is the index of the child to follow
+	static int upperBound(long[] keys, int keyNum, long key) {
+		if(keyNum <= LINEAR_SCAN_LIMIT) {
+			int count = 0;
+			for(int i = 0; i < keyNum; i++) {
+				count += keys[i] <= key ? 1 : 0;
+			}
+			return count;
+		}
+		int base = 0;
+		int n = keyNum;
+		while(n > 1) {
+			int half = n >>> 1;
+			base = keys[base + half] <= key ? base + half : base;
+			n -= half;
+		}
+		return base + (keys[base] <= key ? 1 : 0);
+	}
+
+	//Return the number of keys in keys[0, keyNum) which are smaller than the given key
+	static int lowerBound(long[] keys, int keyNum, long key) {
+		if(keyNum <= LINEAR_SCAN_LIMIT) {
+			int count = 0;
+			for(int i = 0; i < keyNum; i++) {
+				count += keys[i] < key ? 1 : 0;
+			}
+			return count;
+		}
+		int base = 0;
+		int n = keyNum;
+		while(n > 1) {
+			int half = n >>> 1;
+			base = keys[base + half] < key ? base + half : base;
+			n -= half;
+		}
+		return base + (keys[base] < key ? 1 : 0);
+	}
+
+	//Super class for InternalNode and ExternalNode
+	abstract class Node {
+		int keyNum;
+		long[] keys;
+		InternalNode parent;
+
+		//Return the external node which may contain the key
+		abstract ExternalNode findLeaf(long key);
+	}
+
+	//Internal node of the B+ tree
+	class InternalNode extends Node {
+
+		Node[] children;
+
+		InternalNode(){
+			super.keyNum = 0;
+			super.keys = new long[MaxKeyNum];
+			super.parent = null;
+			this.children = new Node[MaxChildrenNum];
+		}
+
+		ExternalNode findLeaf(long key) {
+			Node node = this;
+			while(node instanceof InternalNode) {
+				InternalNode internal = (InternalNode)node;
+				node = internal.children[internal.getIndex(key)];
+			}
+			return (ExternalNode)node;
+		}
+
+		//Used when a node overflows
+		//The node will split into 2 nodes and insert a key into its parent
+		void insert(long key, Node child) {
+			if(keyNum == MaxKeyNum) {
+				insertFull(key, child);
+			}else {
+				insertNotFull(key, child);
+			}
+		}
+
+		//When the node is deficient, it will:
+		//	1. borrow a child from its sibling and a key from its parent
+		//	2. merge with its sibling and borrow a key from its parent
+		void borrowOrMergeFromSibling() {
+			//If root is deficient
+			if(parent == null) {
+				if(keyNum == 0) {
+					root = children[0];
+					root.parent = null;
+				}
+				return;
+			}
+			int indexOfParent = 0;
+			for(int i = 0; i <= parent.keyNum; i++) {
+				if(parent.children[i] == this) {
+					indexOfParent = i;
+					break;
+				}
+			}
+			if(indexOfParent != 0 && parent.children[indexOfParent - 1].keyNum > MinKeyNum) {
+				//Borrow from left sibling
+				InternalNode sibling = (InternalNode)parent.children[indexOfParent - 1];
+				System.arraycopy(keys, 0, keys, 1, keyNum);
+				System.arraycopy(children, 0, children, 1, keyNum + 1);
+				keys[0] = parent.keys[indexOfParent - 1];
+				children[0] = sibling.children[sibling.keyNum];
+				children[0].parent = this;
+				keyNum++;
+				parent.keys[indexOfParent - 1] = sibling.keys[sibling.keyNum - 1];
+				sibling.keyNum--;
+			}else if(indexOfParent != parent.keyNum && parent.children[indexOfParent + 1].keyNum > MinKeyNum) {
+				//Borrow from right sibling
+				InternalNode sibling = (InternalNode)parent.children[indexOfParent + 1];
+				keys[keyNum] = parent.keys[indexOfParent];
+				children[keyNum + 1] = sibling.children[0];
+				children[keyNum + 1].parent = this;
+				keyNum++;
+				parent.keys[indexOfParent] = sibling.keys[0];
+				System.arraycopy(sibling.keys, 1, sibling.keys, 0, sibling.keyNum - 1);
+				System.arraycopy(sibling.children, 1, sibling.children, 0, sibling.keyNum);
+				sibling.keyNum--;
+			}else {
+				if(indexOfParent == 0) {
+					//Merge with right sibling
+					InternalNode sibling = (InternalNode)parent.children[indexOfParent + 1];
+					keys[keyNum] = parent.keys[0];
+					System.arraycopy(sibling.keys, 0, keys, keyNum + 1, sibling.keyNum);
+					System.arraycopy(sibling.children, 0, children, keyNum + 1, sibling.keyNum + 1);
+					keyNum += 1 + sibling.keyNum;
+					for(int i = 0; i <= keyNum; i++) {
+						children[i].parent = this;
+					}
+					System.arraycopy(parent.keys, 1, parent.keys, 0, parent.keyNum - 1);
+					System.arraycopy(parent.children, 2, parent.children, 1, parent.keyNum - 1);
+				}else {
+					//Merge with left sibling
+					InternalNode sibling = (InternalNode)parent.children[indexOfParent - 1];
+					System.arraycopy(keys, 0, keys, sibling.keyNum + 1, keyNum);
+					System.arraycopy(children, 0, children, sibling.keyNum + 1, keyNum + 1);
+					keys[sibling.keyNum] = parent.keys[indexOfParent - 1];
+					System.arraycopy(sibling.keys, 0, keys, 0, sibling.keyNum);
+					System.arraycopy(sibling.children, 0, children, 0, sibling.keyNum + 1);
+					keyNum += 1 + sibling.keyNum;
+					for(int i = 0; i <= keyNum; i++) {
+						children[i].parent = this;
+					}
+					System.arraycopy(parent.keys, indexOfParent, parent.keys, indexOfParent - 1, parent.keyNum - indexOfParent);
+					System.arraycopy(parent.children, indexOfParent, parent.children, indexOfParent - 1, parent.keyNum - indexOfParent + 1);
+				}
+				parent.keyNum--;
+				if(parent.keyNum < MinKeyNum)
+					parent.borrowOrMergeFromSibling();
+			}
+		}
+
+		//insert into a node with maximum key number
+		private void insertFull(long key, Node child) {
+			int index = getIndex(key);
+			InternalNode sibling = new InternalNode();
+			long newKeyForParent;
+			if(index <= keyNum - MinKeyNum - 1) {
+				System.arraycopy(keys, keyNum - MinKeyNum, sibling.keys, 0, MinKeyNum);
+				System.arraycopy(children, keyNum - MinKeyNum, sibling.children, 0, MinKeyNum + 1);
+				newKeyForParent = keys[keyNum - MinKeyNum - 1];
+				System.arraycopy(keys, index, keys, index + 1, keyNum - MinKeyNum - index - 1);
+				System.arraycopy(children, index + 1, children, index + 2, keyNum - MinKeyNum - index - 1);
+				keys[index] = key;
+				children[index + 1] = child;
+			}else if(index == keyNum - MinKeyNum) {
+				System.arraycopy(keys, keyNum - MinKeyNum, sibling.keys, 0, MinKeyNum);
+				System.arraycopy(children, keyNum - MinKeyNum + 1, sibling.children, 1, MinKeyNum);
+				sibling.children[0] = child;
+				newKeyForParent = key;
+			}else {
+				newKeyForParent = keys[keyNum - MinKeyNum];
+				System.arraycopy(keys, keyNum - MinKeyNum + 1, sibling.keys, 0, index - keyNum + MinKeyNum - 1);
+				System.arraycopy(children, keyNum - MinKeyNum + 1, sibling.children, 0, index - keyNum + MinKeyNum);
+				sibling.keys[index - keyNum + MinKeyNum - 1] = key;
+				sibling.children[index - keyNum + MinKeyNum] = child;
+				System.arraycopy(keys, index, sibling.keys, index - keyNum + MinKeyNum, keyNum - index);
+				System.arraycopy(children, index + 1, sibling.children, index - keyNum + MinKeyNum + 1, keyNum - index);
+			}
+			keyNum = keyNum - MinKeyNum;
+			sibling.keyNum = MinKeyNum;
+			//Update children
+			for(int i = 0; i <= keyNum; i++) {
+				children[i].parent = this;
+			}
+			for(int i = 0; i <= sibling.keyNum; i++) {
+				sibling.children[i].parent = sibling;
+			}
+			//Check if a new root need to be generated
+			if(parent == null) {
+				InternalNode newRoot = new InternalNode();
+				newRoot.keyNum = 1;
+				newRoot.keys[0] = newKeyForParent;
+				newRoot.children[0] = this;
+				this.parent = newRoot;
+				newRoot.children[1] = sibling;
+				sibling.parent = newRoot;
+				root = newRoot;
+			}else {
+				parent.insert(newKeyForParent, sibling);
+			}
+		}
+
+		//Insert into a node whose key number is less than the maximum key number
+		private void insertNotFull(long key, Node child) {
+			int index = getIndex(key);
+			System.arraycopy(keys, index, keys, index + 1, keyNum - index);
+			System.arraycopy(children, index + 1, children, index + 2, keyNum - index);
+			keys[index] = key;
+			children[index + 1] = child;
+			child.parent = this;
+			keyNum++;
+		}
+
+		private int getIndex(long key) {
+			return upperBound(keys, keyNum, key);
+		}
+
+	}
+
+	//Leaf node or external node of the B+ tree
+	class ExternalNode extends Node {
+
+		double[] values;
+		ExternalNode pre;
+		ExternalNode after;
+
+		ExternalNode(){
+			super.keyNum = 0;
+			super.keys = new long[MaxKeyNum];
+			super.parent = null;
+			this.values = new double[MaxKeyNum];
+			this.pre = null;
+			this.after = null;
+		}
+
+		ExternalNode findLeaf(long key) {
+			return this;
+		}
+
+		//Insert a key-value pair into the external node
+		//The input key-value pair can't be duplicate
+		void insert(long key, double value) {
+			if(keyNum == MaxKeyNum) {
+				insertFull(key, value);
+			}else {
+				insertNotFull(key, value);
+			}
+		}
+
+		//Visit the pairs in [startKey, endKey] starting from this node and following the after links
+		//Return the number of visited pairs
+		int scan(long startKey, long endKey, KeyValueVisitor visitor) {
+			int count = 0;
+			ExternalNode node = this;
+			int i = lowerBound(keys, keyNum, startKey);
+			while(node != null) {
+				for(; i < node.keyNum; i++) {
+					if(node.keys[i] > endKey)
+						return count;
+					visitor.visit(node.keys[i], node.values[i]);
+					count++;
+				}
+				node = node.after;
+				i = 0;
+			}
+			return count;
+		}
+
+		//Delete a key-value pair from the external node, the key exists
+		void delete(long key) {
+			if(keyNum > MinKeyNum || parent == null) {
+				deleteFromFatNode(key);
+			}else {
+				deleteWithMerge(key);
+			}
+		}
+
+		//Insert a key-value pair into an external node whose key number is less than the maximum key number
+		private void insertNotFull(long key, double value) {
+			int index = getIndex(key);
+			System.arraycopy(keys, index, keys, index + 1, keyNum - index);
+			System.arraycopy(values, index, values, index + 1, keyNum - index);
+			keys[index] = key;
+			values[index] = value;
+			keyNum++;
+		}
+
+		//Insert a key-value pair into an external node with the maximum key number
+		private void insertFull(long key, double value) {
+			ExternalNode sibling = new ExternalNode();
+			int index = getIndex(key);
+			if(index < MinKeyNum) {
+				System.arraycopy(keys, MinKeyNum - 1, sibling.keys, 0, keyNum - MinKeyNum + 1);
+				System.arraycopy(values, MinKeyNum - 1, sibling.values, 0, keyNum - MinKeyNum + 1);
+				sibling.keyNum = keyNum - MinKeyNum + 1;
+				keyNum = MinKeyNum - 1;
+				insertNotFull(key, value);
+			}else {
+				System.arraycopy(keys, MinKeyNum, sibling.keys, 0, keyNum - MinKeyNum);
+				System.arraycopy(values, MinKeyNum, sibling.values, 0, keyNum - MinKeyNum);
+				sibling.keyNum = keyNum - MinKeyNum;
+				keyNum = MinKeyNum;
+				sibling.insertNotFull(key, value);
+			}
+			//check next external node
+			if(after != null) {
+				sibling.after = after;
+				after.pre = sibling;
+			}
+			after = sibling;
+			sibling.pre = this;
+			//check if the node to split is root
+			if(parent == null) {
+				InternalNode newRoot = new InternalNode();
+				newRoot.keyNum = 1;
+				newRoot.keys[0] = sibling.keys[0];
+				newRoot.children[0] = this;
+				parent = newRoot;
+				newRoot.children[1] = sibling;
+				sibling.parent = newRoot;
+				root = newRoot;
+			}else {
+				sibling.parent = parent;
+				parent.insert(sibling.keys[0], sibling);
+			}
+		}
+
+		//Delete a key from an external node whose key number is more than the minimum key number
+		private void deleteFromFatNode(long key) {
+			int index = indexOf(key);
+			System.arraycopy(keys, index + 1, keys, index, keyNum - index - 1);
+			System.arraycopy(values, index + 1, values, index, keyNum - index - 1);
+			keyNum--;
+		}
+
+		//Delete a key from an external node with the minimum key number
+		private void deleteWithMerge(long key) {
+			int indexOfParent = 0;
+			for(int i = 0; i <= parent.keyNum; i++) {
+				if(parent.children[i] == this) {
+					indexOfParent = i;
+					break;
+				}
+			}
+			if(indexOfParent != 0 && parent.children[indexOfParent - 1].keyNum > MinKeyNum) {
+				//Borrow an element from the left sibling
+				ExternalNode sibling = (ExternalNode)parent.children[indexOfParent - 1];
+				deleteFromFatNode(key);
+				insertNotFull(sibling.keys[sibling.keyNum - 1], sibling.values[sibling.keyNum - 1]);
+				sibling.keyNum--;
+				parent.keys[indexOfParent - 1] = keys[0];
+			}else if(indexOfParent != parent.keyNum && parent.children[indexOfParent + 1].keyNum > MinKeyNum) {
+				//Borrow an element from the right sibling
+				ExternalNode sibling = (ExternalNode)parent.children[indexOfParent + 1];
+				deleteFromFatNode(key);
+				insertNotFull(sibling.keys[0], sibling.values[0]);
+				System.arraycopy(sibling.keys, 1, sibling.keys, 0, sibling.keyNum - 1);
+				System.arraycopy(sibling.values, 1, sibling.values, 0, sibling.keyNum - 1);
+				sibling.keyNum--;
+				parent.keys[indexOfParent] = sibling.keys[0];
+			}else {
+				if(indexOfParent == 0) {
+					//Merge with the right sibling
+					ExternalNode sibling = (ExternalNode)parent.children[indexOfParent + 1];
+					deleteFromFatNode(key);
+					System.arraycopy(sibling.keys, 0, keys, keyNum, sibling.keyNum);
+					System.arraycopy(sibling.values, 0, values, keyNum, sibling.keyNum);
+					keyNum += sibling.keyNum;
+					if(sibling.after != null)
+						sibling.after.pre = this;
+					after = sibling.after;
+					System.arraycopy(parent.keys, 1, parent.keys, 0, parent.keyNum - 1);
+					System.arraycopy(parent.children, 2, parent.children, 1, parent.keyNum - 1);
+				}else {
+					//Merge with the left sibling
+					ExternalNode sibling = (ExternalNode)parent.children[indexOfParent - 1];
+					deleteFromFatNode(key);
+					System.arraycopy(keys, 0, keys, sibling.keyNum, keyNum);
+					System.arraycopy(values, 0, values, sibling.keyNum, keyNum);
+					System.arraycopy(sibling.keys, 0, keys, 0, sibling.keyNum);
+					System.arraycopy(sibling.values, 0, values, 0, sibling.keyNum);
+					keyNum += sibling.keyNum;
+					if(sibling.pre != null)
+						sibling.pre.after = this;
+					pre = sibling.pre;
+					System.arraycopy(parent.keys, indexOfParent, parent.keys, indexOfParent - 1, parent.keyNum - indexOfParent);
+					System.arraycopy(parent.children, indexOfParent, parent.children, indexOfParent - 1, parent.keyNum - indexOfParent + 1);
+				}
+				parent.keyNum--;
+				//Parent is deficient
+				if(parent.keyNum < MinKeyNum)
+					parent.borrowOrMergeFromSibling();
+			}
+		}
+
+		private int getIndex(long key) {
+			return upperBound(keys, keyNum, key);
+		}
+
+		//Return the position of a key, or -1 when the key doesn't exist
+		int indexOf(long key) {
+			int index = getIndex(key) - 1;
+			if(index >= 0 && keys[index] == key)
+				return index;
+			return -1;
+		}
+
+	}
+
+}
@@ -0,0 +1,616 @@
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+//B+ tree with copy-on-write nodes, readers see a consistent version of the tree without taking a lock
+//A published node is never modified: a writer copies every node on the path it changes, links the copies
+//into a new root and publishes the root together with a new epoch in a single volatile write
+//A reader pins the current version and can walk it for as long as it likes while writers go on
+//Writers are serialized by the tree's monitor, one insert or delete publishes one version
+//Java's collector frees versions nobody references, the epochs only decide when a node replaced by a writer
+//can no longer be reached by any reader, such nodes are recycled for later copies instead of allocating new ones
+//Inserting an existing key replaces its value
+public class mvccbplustree {
+
+	final int MaxKeyNum;
+	final int MinKeyNum;
+	final int MaxChildrenNum;
+
+	//Epoch of a pin which doesn't hold any version
+	private final static long IDLE = Long.MAX_VALUE;
+	//Replaced nodes kept until no reader can reach them, older ones are left to the collector when it is full
+	private final static int MAX_RETIRED = 1 << 16;
+	//Recycled nodes kept for the next copies
+	private final static int MAX_POOLED = 4096;
+	//Look for reclaimable nodes after this many retirements
+	private final static int RECLAIM_INTERVAL = 256;
+	//Deepest possible tree, every internal node has at least two children
+	private final static int MAX_HEIGHT = 64;
+
+	private volatile Version current;
+
+	//Pins of open snapshots and of running point searches
+	private final Set<Pin> pins = ConcurrentHashMap.newKeySet();
+
+	//Everything below is only used by the writer holding the monitor
+	//Ring of replaced nodes, retiredEpochs[i] is the first epoch whose version no longer holds retired[i]
+	private final Node[] retired = new Node[MAX_RETIRED];
+	private final long[] retiredEpochs = new long[MAX_RETIRED];
+	private int retiredHead;
+	private int retiredCount;
+	private int retiredSinceReclaim;
+	private final ArrayDeque<ExternalNode> freeExternalNodes = new ArrayDeque<>();
+	private final ArrayDeque<InternalNode> freeInternalNodes = new ArrayDeque<>();
+	//Path of the last descent, path[i] is an internal node and pathIndexes[i] the child taken
+	private final InternalNode[] path = new InternalNode[MAX_HEIGHT];
+	private final int[] pathIndexes = new int[MAX_HEIGHT];
+	//Room for an overflowing node before it is split
+	private final int[] splitKeys;
+	private final double[] splitValues;
+	private final Node[] splitChildren;
+	//Number of nodes taken from the pool instead of allocated
+	private long recycled;
+
+	mvccbplustree(int order){
+		if(order < 3)
+			throw new IllegalArgumentException("The order must be at least 3: " + order);
+		this.MaxKeyNum = order - 1;
+		this.MinKeyNum = (int)Math.ceil(((double)order)/2) - 1;
+		this.MaxChildrenNum = order;
+		this.splitKeys = new int[MaxKeyNum + 1];
+		this.splitValues = new double[MaxKeyNum + 1];
+		this.splitChildren = new Node[MaxChildrenNum + 1];
+		this.current = new Version(new ExternalNode(), 0, 0);
+	}
+
+	//Insert a key-value pair, the value of an existing key is replaced
+	public synchronized void insert(int key, double value) {
+		Version version = current;
+		long epoch = version.epoch + 1;
+		int depth = descend(version.root, key);
+		ExternalNode leaf = leafAt(version.root, depth);
+		int index = upperBound(leaf.keys, leaf.keyNum, key);
+		int size = version.size;
+		Node left;
+		Node right = null;
+		int separator = 0;
+		if(index > 0 && leaf.keys[index - 1] == key) {
+			ExternalNode copy = copyOf(leaf);
+			copy.values[index - 1] = value;
+			left = copy;
+		}else if(leaf.keyNum < MaxKeyNum) {
+			ExternalNode copy = newExternalNode();
+			System.arraycopy(leaf.keys, 0, copy.keys, 0, index);
+			System.arraycopy(leaf.values, 0, copy.values, 0, index);
+			copy.keys[index] = key;
+			copy.values[index] = value;
+			System.arraycopy(leaf.keys, index, copy.keys, index + 1, leaf.keyNum - index);
+			System.arraycopy(leaf.values, index, copy.values, index + 1, leaf.keyNum - index);
+			copy.keyNum = leaf.keyNum + 1;
+			left = copy;
+			size++;
+		}else {
+			//Split like ExternalNode.insertFull of bplustree, the left node keeps MinKeyNum pairs
+			System.arraycopy(leaf.keys, 0, splitKeys, 0, index);
+			System.arraycopy(leaf.values, 0, splitValues, 0, index);
+			splitKeys[index] = key;
+			splitValues[index] = value;
+			System.arraycopy(leaf.keys, index, splitKeys, index + 1, leaf.keyNum - index);
+			System.arraycopy(leaf.values, index, splitValues, index + 1, leaf.keyNum - index);
+			ExternalNode first = newExternalNode();
+			ExternalNode second = newExternalNode();
+			first.keyNum = MinKeyNum;
+			second.keyNum = MaxKeyNum + 1 - MinKeyNum;
+			System.arraycopy(splitKeys, 0, first.keys, 0, first.keyNum);
+			System.arraycopy(splitValues, 0, first.values, 0, first.keyNum);
+			System.arraycopy(splitKeys, MinKeyNum, second.keys, 0, second.keyNum);
+			System.arraycopy(splitValues, MinKeyNum, second.values, 0, second.keyNum);
+			left = first;
+			right = second;
+			separator = second.keys[0];
+			size++;
+		}
+		retire(leaf, epoch);
+		//Copy the path bottom-up, a split child adds a key to the copy of its parent
+		for(int d = depth - 1; d >= 0; d--) {
+			InternalNode parent = path[d];
+			int i = pathIndexes[d];
+			retire(parent, epoch);
+			if(right == null) {
+				InternalNode copy = copyOf(parent);
+				copy.children[i] = left;
+				left = copy;
+			}else if(parent.keyNum < MaxKeyNum) {
+				InternalNode copy = newInternalNode();
+				System.arraycopy(parent.keys, 0, copy.keys, 0, i);
+				System.arraycopy(parent.children, 0, copy.children, 0, i);
+				copy.keys[i] = separator;
+				copy.children[i] = left;
+				copy.children[i + 1] = right;
+				System.arraycopy(parent.keys, i, copy.keys, i + 1, parent.keyNum - i);
+				System.arraycopy(parent.children, i + 1, copy.children, i + 2, parent.keyNum - i);
+				copy.keyNum = parent.keyNum + 1;
+				left = copy;
+				right = null;
+			}else {
+				//Split like InternalNode.insertFull of bplustree, the right node gets MinKeyNum keys
+				System.arraycopy(parent.keys, 0, splitKeys, 0, i);
+				System.arraycopy(parent.children, 0, splitChildren, 0, i);
+				splitKeys[i] = separator;
+				splitChildren[i] = left;
+				splitChildren[i + 1] = right;
+				System.arraycopy(parent.keys, i, splitKeys, i + 1, parent.keyNum - i);
+				System.arraycopy(parent.children, i + 1, splitChildren, i + 2, parent.keyNum - i);
+				InternalNode first = newInternalNode();
+				InternalNode second = newInternalNode();
+				first.keyNum = MaxKeyNum - MinKeyNum;
+				second.keyNum = MinKeyNum;
+				System.arraycopy(splitKeys, 0, first.keys, 0, first.keyNum);
+				System.arraycopy(splitChildren, 0, first.children, 0, first.keyNum + 1);
+				separator = splitKeys[first.keyNum];
+				System.arraycopy(splitKeys, first.keyNum + 1, second.keys, 0, second.keyNum);
+				System.arraycopy(splitChildren, first.keyNum + 1, second.children, 0, second.keyNum + 1);
+				Arrays.fill(splitChildren, null);
+				left = first;
+				right = second;
+			}
+		}
+		if(right != null) {
+			InternalNode newRoot = newInternalNode();
+			newRoot.keyNum = 1;
+			newRoot.keys[0] = separator;
+			newRoot.children[0] = left;
+			newRoot.children[1] = right;
+			left = newRoot;
+		}
+		publish(new Version(left, epoch, size));
+	}
+
+	//Delete a key
+	//It will do nothing when the key isn't found
+	public synchronized void delete(int key) {
+		Version version = current;
+		long epoch = version.epoch + 1;
+		int depth = descend(version.root, key);
+		ExternalNode leaf = leafAt(version.root, depth);
+		int index = upperBound(leaf.keys, leaf.keyNum, key) - 1;
+		if(index < 0 || leaf.keys[index] != key)
+			return;
+		ExternalNode copy = newExternalNode();
+		System.arraycopy(leaf.keys, 0, copy.keys, 0, index);
+		System.arraycopy(leaf.values, 0, copy.values, 0, index);
+		System.arraycopy(leaf.keys, index + 1, copy.keys, index, leaf.keyNum - index - 1);
+		System.arraycopy(leaf.values, index + 1, copy.values, index, leaf.keyNum - index - 1);
+		copy.keyNum = leaf.keyNum - 1;
+		retire(leaf, epoch);
+		//Copy the path bottom-up, a deficient child borrows from or merges with a sibling in the copy of its parent
+		Node child = copy;
+		for(int d = depth - 1; d >= 0; d--) {
+			InternalNode parent = copyOf(path[d]);
+			retire(path[d], epoch);
+			parent.children[pathIndexes[d]] = child;
+			if(child.keyNum < MinKeyNum)
+				borrowOrMerge(parent, pathIndexes[d], epoch);
+			child = parent;
+		}
+		//A root without keys gives its place to its only child
+		if(child instanceof InternalNode && child.keyNum == 0) {
+			Node newRoot = ((InternalNode)child).children[0];
+			free(child);
+			child = newRoot;
+		}
+		publish(new Version(child, epoch, version.size - 1));
+	}
+
+	//Return the value of a key, or notFound when the key doesn't exist
+	public double search(int key, double notFound) {
+		//The pin only lives as long as the search, so the set of pins doesn't grow with the number of reader threads
+		Pin pin = new Pin();
+		pins.add(pin);
+		try {
+			return pin(pin).search(key, notFound);
+		}finally {
+			pin.epoch = IDLE;
+			pins.remove(pin);
+		}
+	}
+
+	//Range search on the current version, see Snapshot.search
+	public int search(int startKey, int endKey, bplustree.KeyValueVisitor visitor) {
+		try(Snapshot snapshot = snapshot()) {
+			return snapshot.search(startKey, endKey, visitor);
+		}
+	}
+
+	//Number of keys in the current version
+	public int size() {
+		return current.size;
+	}
+
+	//Pin the current version, it stays readable and unchanged until the snapshot is closed
+	//A snapshot which is never closed keeps the writer from recycling nodes, but nothing else
+	public Snapshot snapshot() {
+		Pin pin = new Pin();
+		pins.add(pin);
+		return new Snapshot(pin, pin(pin));
+	}
+
+	//Number of nodes the writer took from the pool of recycled nodes instead of allocating them
+	public synchronized long recycledNodes() {
+		return recycled;
+	}
+
+	//A point-in-time view of the tree
+	public class Snapshot implements AutoCloseable {
+
+		private final Pin pin;
+		private final Version version;
+
+		private Snapshot(Pin pin, Version version) {
+			this.pin = pin;
+			this.version = version;
+		}
+
+		//Return the value of a key in this version, or notFound when the key doesn't exist
+		public double search(int key, double notFound) {
+			if(pin.epoch == IDLE)
+				throw new IllegalStateException("The snapshot is closed");
+			return version.search(key, notFound);
+		}
+
+		//Stream every key-value pair of this version in [startKey, endKey] to the visitor in key order
+		//Return the number of visited pairs
+		public int search(int startKey, int endKey, bplustree.KeyValueVisitor visitor) {
+			if(pin.epoch == IDLE)
+				throw new IllegalStateException("The snapshot is closed");
+			if(startKey > endKey)
+				return 0;
+			return scan(version.root, startKey, endKey, visitor);
+		}
+
+		public int size() {
+			return version.size;
+		}
+
+		//Number of writes before this version
+		public long epoch() {
+			return version.epoch;
+		}
+
+		//Release the version, its replaced nodes can be recycled once no other reader holds them
+		public void close() {
+			pin.epoch = IDLE;
+			pins.remove(pin);
+		}
+
+	}
+
+	//Root of one version, epoch counts the writes which led to it
+	private final static class Version {
+
+		final Node root;
+		final long epoch;
+		final int size;
+
+		Version(Node root, long epoch, int size) {
+			this.root = root;
+			this.epoch = epoch;
+			this.size = size;
+		}
+
+		double search(int key, double notFound) {
+			Node node = root;
+			while(node instanceof InternalNode) {
+				InternalNode internal = (InternalNode)node;
+				node = internal.children[upperBound(internal.keys, internal.keyNum, key)];
+			}
+			ExternalNode leaf = (ExternalNode)node;
+			int index = upperBound(leaf.keys, leaf.keyNum, key) - 1;
+			return index >= 0 && leaf.keys[index] == key ? leaf.values[index] : notFound;
+		}
+
+	}
+
+	//Epoch of the version a reader holds, or IDLE
+	private final static class Pin {
+		volatile long epoch = IDLE;
+	}
+
+	//Announce the current version in the pin, then check it is still current
+	//A writer reads the pins after publishing, so either it sees the announcement and keeps the nodes of the version,
+	//or the version was replaced before the announcement and the check fails
+	private Version pin(Pin pin) {
+		Version version = current;
+		while(true) {
+			pin.epoch = version.epoch;
+			Version now = current;
+			if(now == version)
+				return version;
+			version = now;
+		}
+	}
+
+	private void publish(Version version) {
+		current = version;
+		if(retiredSinceReclaim >= RECLAIM_INTERVAL)
+			reclaim();
+	}
+
+	//Remember a node the next version no longer holds
+	private void retire(Node node, long epoch) {
+		if(retiredCount == MAX_RETIRED) {
+			//A reader holds an old version for a long time, leave the oldest node to the collector
+			retired[retiredHead] = null;
+			retiredHead = (retiredHead + 1) % MAX_RETIRED;
+			retiredCount--;
+		}
+		int tail = (retiredHead + retiredCount) % MAX_RETIRED;
+		retired[tail] = node;
+		retiredEpochs[tail] = epoch;
+		retiredCount++;
+		retiredSinceReclaim++;
+	}
+
+	//Recycle the retired nodes which no pinned version holds
+	//A node retired at epoch e is held by the versions before e, so it is free once every pin is at e or later
+	private void reclaim() {
+		retiredSinceReclaim = 0;
+		long oldest = current.epoch;
+		for(Pin pin : pins) {
+			oldest = Math.min(oldest, pin.epoch);
+		}
+		while(retiredCount > 0 && retiredEpochs[retiredHead] <= oldest) {
+			free(retired[retiredHead]);
+			retired[retiredHead] = null;
+			retiredHead = (retiredHead + 1) % MAX_RETIRED;
+			retiredCount--;
+		}
+	}
+
+	//Give a node no reader can reach back to the pool
+	private void free(Node node) {
+		if(node instanceof InternalNode) {
+			if(freeInternalNodes.size() < MAX_POOLED) {
+				Arrays.fill(((InternalNode)node).children, null);
+				freeInternalNodes.push((InternalNode)node);
+			}
+		}else if(freeExternalNodes.size() < MAX_POOLED) {
+			freeExternalNodes.push((ExternalNode)node);
+		}
+	}
+
+	private ExternalNode newExternalNode() {
+		ExternalNode node = freeExternalNodes.poll();
+		if(node == null)
+			return new ExternalNode();
+		recycled++;
+		return node;
+	}
+
+	private InternalNode newInternalNode() {
+		InternalNode node = freeInternalNodes.poll();
+		if(node == null)
+			return new InternalNode();
+		recycled++;
+		return node;
+	}
+
+	private ExternalNode copyOf(ExternalNode node) {
+		ExternalNode copy = newExternalNode();
+		System.arraycopy(node.keys, 0, copy.keys, 0, node.keyNum);
+		System.arraycopy(node.values, 0, copy.values, 0, node.keyNum);
+		copy.keyNum = node.keyNum;
+		return copy;
+	}
+
+	private InternalNode copyOf(InternalNode node) {
+		InternalNode copy = newInternalNode();
+		System.arraycopy(node.keys, 0, copy.keys, 0, node.keyNum);
+		System.arraycopy(node.children, 0, copy.children, 0, node.keyNum + 1);
+		copy.keyNum = node.keyNum;
+		return copy;
+	}
+
+	private Node copyOf(Node node) {
+		return node instanceof InternalNode ? copyOf((InternalNode)node) : copyOf((ExternalNode)node);
+	}
+
+	//Walk down to the external node of a key and record the path, return its depth
+	private int descend(Node root, int key) {
+		int depth = 0;
+		Node node = root;
+		while(node instanceof InternalNode) {
+			InternalNode internal = (InternalNode)node;
+			int index = upperBound(internal.keys, internal.keyNum, key);
+			path[depth] = internal;
+			pathIndexes[depth] = index;
+			node = internal.children[index];
+			depth++;
+		}
+		return depth;
+	}
+
+	private ExternalNode leafAt(Node root, int depth) {
+		return (ExternalNode)(depth == 0 ? root : path[depth - 1].children[pathIndexes[depth - 1]]);
+	}
+
+	//Fix the deficient child at index of a parent copy, the child is a copy as well
+	//Like bplustree it borrows from the left sibling, then from the right one, and merges otherwise
+	//The sibling it changes is copied first, the old sibling is retired
+	private void borrowOrMerge(InternalNode parent, int index, long epoch) {
+		Node child = parent.children[index];
+		if(index != 0 && parent.children[index - 1].keyNum > MinKeyNum) {
+			//Borrow from the left sibling
+			Node sibling = copyOf(parent.children[index - 1]);
+			retire(parent.children[index - 1], epoch);
+			parent.children[index - 1] = sibling;
+			if(child instanceof ExternalNode) {
+				ExternalNode to = (ExternalNode)child;
+				ExternalNode from = (ExternalNode)sibling;
+				System.arraycopy(to.keys, 0, to.keys, 1, to.keyNum);
+				System.arraycopy(to.values, 0, to.values, 1, to.keyNum);
+				to.keys[0] = from.keys[from.keyNum - 1];
+				to.values[0] = from.values[from.keyNum - 1];
+				parent.keys[index - 1] = to.keys[0];
+			}else {
+				InternalNode to = (InternalNode)child;
+				InternalNode from = (InternalNode)sibling;
+				System.arraycopy(to.keys, 0, to.keys, 1, to.keyNum);
+				System.arraycopy(to.children, 0, to.children, 1, to.keyNum + 1);
+				to.keys[0] = parent.keys[index - 1];
+				to.children[0] = from.children[from.keyNum];
+				from.children[from.keyNum] = null;
+				parent.keys[index - 1] = from.keys[from.keyNum - 1];
+			}
+			child.keyNum++;
+			sibling.keyNum--;
+		}else if(index != parent.keyNum && parent.children[index + 1].keyNum > MinKeyNum) {
+			//Borrow from the right sibling
+			Node sibling = copyOf(parent.children[index + 1]);
+			retire(parent.children[index + 1], epoch);
+			parent.children[index + 1] = sibling;
+			if(child instanceof ExternalNode) {
+				ExternalNode to = (ExternalNode)child;
+				ExternalNode from = (ExternalNode)sibling;
+				to.keys[to.keyNum] = from.keys[0];
+				to.values[to.keyNum] = from.values[0];
+				System.arraycopy(from.keys, 1, from.keys, 0, from.keyNum - 1);
+				System.arraycopy(from.values, 1, from.values, 0, from.keyNum - 1);
+				parent.keys[index] = from.keys[0];
+			}else {
+				InternalNode to = (InternalNode)child;
+				InternalNode from = (InternalNode)sibling;
+				to.keys[to.keyNum] = parent.keys[index];
+				to.children[to.keyNum + 1] = from.children[0];
+				parent.keys[index] = from.keys[0];
+				System.arraycopy(from.keys, 1, from.keys, 0, from.keyNum - 1);
+				System.arraycopy(from.children, 1, from.children, 0, from.keyNum);
+				from.children[from.keyNum] = null;
+			}
+			child.keyNum++;
+			sibling.keyNum--;
+		}else if(index == 0) {
+			//Merge with the right sibling, which is only read
+			Node sibling = parent.children[1];
+			absorb(child, parent.keys[0], sibling);
+			retire(sibling, epoch);
+			System.arraycopy(parent.keys, 1, parent.keys, 0, parent.keyNum - 1);
+			System.arraycopy(parent.children, 2, parent.children, 1, parent.keyNum - 1);
+			parent.children[parent.keyNum] = null;
+			parent.keyNum--;
+		}else {
+			//Merge into a copy of the left sibling, the child copy was never published
+			Node sibling = copyOf(parent.children[index - 1]);
+			retire(parent.children[index - 1], epoch);
+			absorb(sibling, parent.keys[index - 1], child);
+			free(child);
+			parent.children[index - 1] = sibling;
+			System.arraycopy(parent.keys, index, parent.keys, index - 1, parent.keyNum - index);
+			System.arraycopy(parent.children, index + 1, parent.children, index, parent.keyNum - index);
+			parent.children[parent.keyNum] = null;
+			parent.keyNum--;
+		}
+	}
+
+	//Append every key of the right node to the left node, separator is the parent key between them
+	private static void absorb(Node left, int separator, Node right) {
+		if(left instanceof ExternalNode) {
+			ExternalNode to = (ExternalNode)left;
+			ExternalNode from = (ExternalNode)right;
+			System.arraycopy(from.keys, 0, to.keys, to.keyNum, from.keyNum);
+			System.arraycopy(from.values, 0, to.values, to.keyNum, from.keyNum);
+			to.keyNum += from.keyNum;
+		}else {
+			InternalNode to = (InternalNode)left;
+			InternalNode from = (InternalNode)right;
+			to.keys[to.keyNum] = separator;
+			System.arraycopy(from.keys, 0, to.keys, to.keyNum + 1, from.keyNum);
+			System.arraycopy(from.children, 0, to.children, to.keyNum + 1, from.keyNum + 1);
+			to.keyNum += 1 + from.keyNum;
+		}
+	}
+
+	//Visit the pairs of a subtree in [startKey, endKey], only the children which may hold such keys are entered
+	//There are no links between external nodes, a node would need a new predecessor every time it is copied
+	private static int scan(Node node, int startKey, int endKey, bplustree.KeyValueVisitor visitor) {
+		if(node instanceof ExternalNode) {
+			ExternalNode leaf = (ExternalNode)node;
+			int count = 0;
+			for(int i = lowerBound(leaf.keys, leaf.keyNum, startKey); i < leaf.keyNum && leaf.keys[i] <= endKey; i++) {
+				visitor.visit(leaf.keys[i], leaf.values[i]);
+				count++;
+			}
+			return count;
+		}
+		InternalNode internal = (InternalNode)node;
+		int first = upperBound(internal.keys, internal.keyNum, startKey);
+		int last = upperBound(internal.keys, internal.keyNum, endKey);
+		int count = 0;
+		for(int i = first; i <= last; i++) {
+			count += scan(internal.children[i], startKey, endKey, visitor);
+		}
+		return count;
+	}
+
+	//Return the number of keys in keys[0, keyNum) which are not larger than the given key
+	static int upperBound(int[] keys, int keyNum, int key) {
+		int low = 0;
+		int high = keyNum;
+		while(low < high) {
+			int mid = (low + high) >>> 1;
+			if(keys[mid] <= key) {
+				low = mid + 1;
+			}else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+
+	//Return the number of keys in keys[0, keyNum) which are smaller than the given key
+	static int lowerBound(int[] keys, int keyNum, int key) {
+		int low = 0;
+		int high = keyNum;
+		while(low < high) {
+			int mid = (low + high) >>> 1;
+			if(keys[mid] < key) {
+				low = mid + 1;
+			}else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+
+	//Super class for InternalNode and ExternalNode, a node is only changed before it is published
+	abstract class Node {
+		int keyNum;
+		int[] keys;
+	}
+
+	//Internal node of the B+ tree
+	class InternalNode extends Node {
+
+		Node[] children;
+
+		InternalNode(){
+			super.keyNum = 0;
+			super.keys = new int[MaxKeyNum];
+			this.children = new Node[MaxChildrenNum];
+		}
+
+	}
+
+	//Leaf node or external node of the B+ tree
+	class ExternalNode extends Node {
+
+		double[] values;
+
+		ExternalNode(){
+			super.keyNum = 0;
+			super.keys = new int[MaxKeyNum];
+			this.values = new double[MaxKeyNum];
+		}
+
+	}
+
+}
@@ -0,0 +1,1017 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+
+//B+ tree stored in a file as fixed-size pages
+//Pages are reached through a PageStore, either the memory-mapped file or a bounded buffer pool in front of it
+//Either way opening a tree only reads the header and the pages are loaded on demand
+//Without a file the pages live in an off-heap arena, which keeps millions of nodes out of reach of the garbage collector
+//Nodes refer to each other by page id instead of references, page id 0 is the header and means "no page"
+//There are no parent links, insert and delete remember the path they took from the root instead
+//Every page is pinned while it is used and unpinned right after, so at most a handful of pages are pinned at once
+public class pagedbplustree implements Closeable {
+
+	final int MaxKeyNum;
+	final int MinKeyNum;
+	final int MaxChildrenNum;
+
+	//Header page layout
+	private final static int MAGIC = 0x42505446;
+	private final static int FORMAT_VERSION = 1;
+	private final static int HEADER_MAGIC = 0;
+	private final static int HEADER_VERSION = 4;
+	private final static int HEADER_ORDER = 8;
+	private final static int HEADER_PAGE_SIZE = 12;
+	private final static int HEADER_ROOT = 16;
+	private final static int HEADER_PAGE_COUNT = 20;
+	private final static int HEADER_FREE_LIST = 24;
+	private final static int HEADER_SIZE = 28;
+
+	//Node page layout, keys start at KEYS and are followed by the children or the values
+	private final static int TYPE = 0;
+	private final static int KEY_NUM = 4;
+	private final static int PRE = 8;
+	private final static int AFTER = 12;
+	private final static int KEYS = 16;
+	//A free page keeps the id of the next free page where the key number would be
+	private final static int NEXT_FREE = KEY_NUM;
+
+	private final static byte INTERNAL = 1;
+	private final static byte EXTERNAL = 2;
+	private final static byte FREE = 3;
+
+	private final static int NO_PAGE = 0;
+	private final static int MAX_HEIGHT = 64;
+
+	final int pageSize;
+	private final int childrenOffset;
+	private final int valuesOffset;
+
+	private final FileChannel channel;
+	private final PageStore store;
+
+	private int root;
+	private int pageCount;
+	private int freeList;
+
+	//The path of the last descent, pathIndexes[i] is the child taken at pathPages[i]
+	private final int[] pathPages = new int[MAX_HEIGHT];
+	private final int[] pathIndexes = new int[MAX_HEIGHT];
+	//Scratch space holding an overflowing node before it is split
+	private final int[] tempKeys;
+	private final double[] tempValues;
+	private final int[] tempChildren;
+
+	//Open the tree stored in a file, or create an empty tree of the given order when the file doesn't exist
+	//The file is memory-mapped
+	pagedbplustree(Path path, int order) throws IOException {
+		this(path, order, 0);
+	}
+
+	//Open an existing tree file
+	pagedbplustree(Path path) throws IOException {
+		this(checkExists(path), 0, 0);
+	}
+
+	//Same as pagedbplustree(path, order) but the pages are cached in a buffer pool of bufferPoolPages frames
+	//A bufferPoolPages of 0 memory-maps the file instead
+	pagedbplustree(Path path, int order, int bufferPoolPages) throws IOException {
+		this(FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE), path, order, bufferPoolPages);
+	}
+
+	//Empty tree whose pages are kept in direct memory instead of a file
+	//Nodes are addressed by page id like in a file, so the heap only holds the slabs of the arena
+	//Nothing is persisted, the pages are released when the tree is closed
+	pagedbplustree(int order) {
+		this(null, order, 0, false);
+	}
+
+	private pagedbplustree(FileChannel channel, Path path, int order, int bufferPoolPages) throws IOException {
+		this(channel, storedOrder(channel, path, order), bufferPoolPages, channel.size() > 0);
+	}
+
+	private pagedbplustree(FileChannel channel, int order, int bufferPoolPages, boolean exists) {
+		this.channel = channel;
+		try {
+			this.MaxKeyNum = order - 1;
+			this.MinKeyNum = (int)Math.ceil(((double)order)/2) - 1;
+			this.MaxChildrenNum = order;
+			this.childrenOffset = KEYS + 4 * MaxKeyNum;
+			this.valuesOffset = (childrenOffset + 7) & ~7;
+			this.pageSize = pageSizeFor(order);
+			this.tempKeys = new int[MaxKeyNum + 1];
+			this.tempValues = new double[MaxKeyNum + 1];
+			this.tempChildren = new int[MaxChildrenNum + 1];
+			if(channel == null)
+				this.store = new ArenaPageStore(pageSize);
+			else if(bufferPoolPages > 0)
+				this.store = new BufferPool(channel, pageSize, bufferPoolPages);
+			else
+				this.store = new MappedPageStore(channel, pageSize);
+			if(exists) {
+				Page header = pin(0);
+				this.root = header.buffer.getInt(HEADER_ROOT);
+				this.pageCount = header.buffer.getInt(HEADER_PAGE_COUNT);
+				this.freeList = header.buffer.getInt(HEADER_FREE_LIST);
+				unpin(header);
+			}else {
+				this.pageCount = 1;
+				this.freeList = NO_PAGE;
+				Page leaf = allocate(EXTERNAL);
+				this.root = leaf.id;
+				unpin(leaf);
+				writeHeader();
+			}
+		}catch(RuntimeException | Error e) {
+			//Don't leak the file when the tree can't be opened
+			if(channel != null) {
+				try {
+					channel.close();
+				}catch(IOException closeFailure) {
+					e.addSuppressed(closeFailure);
+				}
+			}
+			throw e;
+		}
+	}
+
+	//The order stored in the header of an existing file, or the given order for a new file
+	//An order of 0 means the file must already hold a tree
+	//The channel is closed when the file can't be opened
+	private static int storedOrder(FileChannel channel, Path path, int order) throws IOException {
+		try {
+			if(channel.size() == 0) {
+				if(order == 0)
+					throw new IOException(path + " isn't a B+ tree file, it is empty");
+				return order;
+			}
+			ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+			while(buffer.hasRemaining() && channel.read(buffer, buffer.position()) >= 0) {
+			}
+			if(buffer.hasRemaining() || buffer.getInt(HEADER_MAGIC) != MAGIC || buffer.getInt(HEADER_VERSION) != FORMAT_VERSION)
+				throw new IOException(path + " isn't a B+ tree file of version " + FORMAT_VERSION);
+			return buffer.getInt(HEADER_ORDER);
+		}catch(IOException | RuntimeException e) {
+			try {
+				channel.close();
+			}catch(IOException closeFailure) {
+				e.addSuppressed(closeFailure);
+			}
+			throw e;
+		}
+	}
+
+	private static Path checkExists(Path path) throws IOException {
+		if(!Files.exists(path))
+			throw new FileNotFoundException(path.toString());
+		return path;
+	}
+
+	//The smallest power of two which holds an external node and an internal node of the order
+	static int pageSizeFor(int order) {
+		if(order < 3)
+			throw new IllegalArgumentException("The order must be at least 3: " + order);
+		int keysEnd = KEYS + 4 * (order - 1);
+		int needed = Math.max(keysEnd + 4 * order, ((keysEnd + 7) & ~7) + 8 * (order - 1));
+		needed = Math.max(needed, HEADER_SIZE);
+		int size = 256;
+		while(size < needed) {
+			size <<= 1;
+		}
+		return size;
+	}
+
+	//Insert a key-value pair, the value of an existing key is replaced
+	public void insert(int key, double value) {
+		int depth = descend(key);
+		Page leaf = pin(pathPages[depth]);
+		int keyNum = leaf.keyNum();
+		int index = upperBound(leaf, key);
+		if(index > 0 && leaf.key(index - 1) == key) {
+			leaf.setValue(index - 1, value);
+			unpin(leaf);
+			return;
+		}
+		if(keyNum < MaxKeyNum) {
+			leaf.insertEntry(index, key, value);
+			unpin(leaf);
+			return;
+		}
+		//Split a full external node, the left node keeps MinKeyNum pairs like in bplustree
+		for(int i = 0; i < keyNum; i++) {
+			tempKeys[i] = leaf.key(i);
+			tempValues[i] = leaf.value(i);
+		}
+		System.arraycopy(tempKeys, index, tempKeys, index + 1, keyNum - index);
+		System.arraycopy(tempValues, index, tempValues, index + 1, keyNum - index);
+		tempKeys[index] = key;
+		tempValues[index] = value;
+		Page sibling = allocate(EXTERNAL);
+		for(int i = 0; i < MinKeyNum; i++) {
+			leaf.setKey(i, tempKeys[i]);
+			leaf.setValue(i, tempValues[i]);
+		}
+		for(int i = MinKeyNum; i <= keyNum; i++) {
+			sibling.setKey(i - MinKeyNum, tempKeys[i]);
+			sibling.setValue(i - MinKeyNum, tempValues[i]);
+		}
+		leaf.setKeyNum(MinKeyNum);
+		sibling.setKeyNum(keyNum + 1 - MinKeyNum);
+		//Link the new node into the leaf chain
+		int after = leaf.after();
+		if(after != NO_PAGE) {
+			Page next = pin(after);
+			next.setPre(sibling.id);
+			unpin(next);
+		}
+		sibling.setAfter(after);
+		sibling.setPre(leaf.id);
+		leaf.setAfter(sibling.id);
+		int separator = sibling.key(0);
+		int siblingId = sibling.id;
+		unpin(sibling);
+		unpin(leaf);
+		insertIntoParent(depth - 1, separator, siblingId);
+	}
+
+	//Insert the separator and the new right node of a split at a level of the path
+	//Splits continue up the path, a new root is generated when the root splits
+	private void insertIntoParent(int level, int key, int child) {
+		while(level >= 0) {
+			Page node = pin(pathPages[level]);
+			int index = pathIndexes[level];
+			int keyNum = node.keyNum();
+			if(keyNum < MaxKeyNum) {
+				node.insertChild(index, key, child);
+				unpin(node);
+				return;
+			}
+			for(int i = 0; i < keyNum; i++) {
+				tempKeys[i] = node.key(i);
+				tempChildren[i] = node.child(i);
+			}
+			tempChildren[keyNum] = node.child(keyNum);
+			System.arraycopy(tempKeys, index, tempKeys, index + 1, keyNum - index);
+			System.arraycopy(tempChildren, index + 1, tempChildren, index + 2, keyNum - index);
+			tempKeys[index] = key;
+			tempChildren[index + 1] = child;
+			//The left node keeps keyNum - MinKeyNum keys, the next key moves up and the sibling gets MinKeyNum keys
+			int leftKeyNum = keyNum - MinKeyNum;
+			Page sibling = allocate(INTERNAL);
+			for(int i = 0; i < leftKeyNum; i++) {
+				node.setKey(i, tempKeys[i]);
+				node.setChild(i, tempChildren[i]);
+			}
+			node.setChild(leftKeyNum, tempChildren[leftKeyNum]);
+			node.setKeyNum(leftKeyNum);
+			for(int i = 0; i < MinKeyNum; i++) {
+				sibling.setKey(i, tempKeys[leftKeyNum + 1 + i]);
+				sibling.setChild(i, tempChildren[leftKeyNum + 1 + i]);
+			}
+			sibling.setChild(MinKeyNum, tempChildren[keyNum + 1]);
+			sibling.setKeyNum(MinKeyNum);
+			key = tempKeys[leftKeyNum];
+			child = sibling.id;
+			unpin(sibling);
+			unpin(node);
+			level--;
+		}
+		Page newRoot = allocate(INTERNAL);
+		newRoot.setKeyNum(1);
+		newRoot.setKey(0, key);
+		newRoot.setChild(0, root);
+		newRoot.setChild(1, child);
+		root = newRoot.id;
+		unpin(newRoot);
+	}
+
+	//Search for a specified key
+	//It will return "" when the key doesn't exist
+	public String search(int key) {
+		Page leaf = pin(findLeaf(key));
+		int index = indexOf(leaf, key);
+		String result = index == -1 ? "" : Double.toString(leaf.value(index));
+		unpin(leaf);
+		return result;
+	}
+
+	//Return the value of a key, or notFound when the key doesn't exist
+	public double searchValue(int key, double notFound) {
+		Page leaf = pin(findLeaf(key));
+		int index = indexOf(leaf, key);
+		double value = index == -1 ? notFound : leaf.value(index);
+		unpin(leaf);
+		return value;
+	}
+
+	//Range search
+	//It will return "" when there is no key in the range
+	public String search(int startKey, int endKey) {
+		StringBuilder sb = new StringBuilder();
+		search(startKey, endKey, (key, value) -> {
+			if(sb.length() != 0)
+				sb.append(",");
+			sb.append(value);
+		});
+		return sb.toString();
+	}
+
+	//Range search which streams every key-value pair in [startKey, endKey] to the visitor in key order
+	public int search(int startKey, int endKey, bplustree.KeyValueVisitor visitor) {
+		if(startKey > endKey)
+			return 0;
+		int count = 0;
+		Page leaf = pin(findLeaf(startKey));
+		int i = startKey == Integer.MIN_VALUE ? 0 : upperBound(leaf, startKey - 1);
+		while(true) {
+			int keyNum = leaf.keyNum();
+			for(; i < keyNum; i++) {
+				int key = leaf.key(i);
+				if(key > endKey) {
+					unpin(leaf);
+					return count;
+				}
+				visitor.visit(key, leaf.value(i));
+				count++;
+			}
+			int after = leaf.after();
+			unpin(leaf);
+			if(after == NO_PAGE)
+				return count;
+			leaf = pin(after);
+			i = 0;
+		}
+	}
+
+	//Delete a key
+	//It will do nothing when the key isn't found
+	public void delete(int key) {
+		int depth = descend(key);
+		Page leaf = pin(pathPages[depth]);
+		int index = indexOf(leaf, key);
+		if(index != -1)
+			leaf.removeEntry(index);
+		unpin(leaf);
+		if(index == -1)
+			return;
+		//Borrow from or merge with a sibling while the node on the path is deficient
+		for(int level = depth; level > 0; level--) {
+			Page node = pin(pathPages[level]);
+			if(node.keyNum() >= MinKeyNum) {
+				unpin(node);
+				return;
+			}
+			Page parent = pin(pathPages[level - 1]);
+			int indexOfParent = pathIndexes[level - 1];
+			Page left = indexOfParent != 0 ? pin(parent.child(indexOfParent - 1)) : null;
+			Page right = indexOfParent != parent.keyNum() ? pin(parent.child(indexOfParent + 1)) : null;
+			boolean borrowed = true;
+			if(left != null && left.keyNum() > MinKeyNum) {
+				borrowFromLeft(parent, indexOfParent, node, left);
+			}else if(right != null && right.keyNum() > MinKeyNum) {
+				borrowFromRight(parent, indexOfParent, node, right);
+			}else {
+				if(indexOfParent == 0)
+					merge(parent, 0, node, right);
+				else
+					merge(parent, indexOfParent - 1, left, node);
+				borrowed = false;
+			}
+			if(left != null)
+				unpin(left);
+			if(right != null)
+				unpin(right);
+			unpin(node);
+			unpin(parent);
+			if(borrowed)
+				return;
+		}
+		//The root lost its last key, its only child becomes the root
+		Page rootPage = pin(root);
+		if(rootPage.type() == INTERNAL && rootPage.keyNum() == 0) {
+			int child = rootPage.child(0);
+			free(rootPage);
+			root = child;
+		}
+		unpin(rootPage);
+	}
+
+	private void borrowFromLeft(Page parent, int indexOfParent, Page node, Page sibling) {
+		int siblingKeyNum = sibling.keyNum();
+		if(node.type() == EXTERNAL) {
+			node.insertEntry(0, sibling.key(siblingKeyNum - 1), sibling.value(siblingKeyNum - 1));
+			sibling.setKeyNum(siblingKeyNum - 1);
+			parent.setKey(indexOfParent - 1, node.key(0));
+		}else {
+			int keyNum = node.keyNum();
+			node.setChild(keyNum + 1, node.child(keyNum));
+			for(int i = keyNum; i > 0; i--) {
+				node.setKey(i, node.key(i - 1));
+				node.setChild(i, node.child(i - 1));
+			}
+			node.setKey(0, parent.key(indexOfParent - 1));
+			node.setChild(0, sibling.child(siblingKeyNum));
+			node.setKeyNum(keyNum + 1);
+			parent.setKey(indexOfParent - 1, sibling.key(siblingKeyNum - 1));
+			sibling.setKeyNum(siblingKeyNum - 1);
+		}
+	}
+
+	private void borrowFromRight(Page parent, int indexOfParent, Page node, Page sibling) {
+		int siblingKeyNum = sibling.keyNum();
+		int keyNum = node.keyNum();
+		if(node.type() == EXTERNAL) {
+			node.insertEntry(keyNum, sibling.key(0), sibling.value(0));
+			sibling.removeEntry(0);
+			parent.setKey(indexOfParent, sibling.key(0));
+		}else {
+			node.setKey(keyNum, parent.key(indexOfParent));
+			node.setChild(keyNum + 1, sibling.child(0));
+			node.setKeyNum(keyNum + 1);
+			parent.setKey(indexOfParent, sibling.key(0));
+			for(int i = 0; i < siblingKeyNum - 1; i++) {
+				sibling.setKey(i, sibling.key(i + 1));
+				sibling.setChild(i, sibling.child(i + 1));
+			}
+			sibling.setChild(siblingKeyNum - 1, sibling.child(siblingKeyNum));
+			sibling.setKeyNum(siblingKeyNum - 1);
+		}
+	}
+
+	//Move everything of the right node into the left node and free the right node
+	//The separator at index is removed from the parent
+	private void merge(Page parent, int index, Page left, Page right) {
+		int leftKeyNum = left.keyNum();
+		int rightKeyNum = right.keyNum();
+		if(left.type() == EXTERNAL) {
+			for(int i = 0; i < rightKeyNum; i++) {
+				left.setKey(leftKeyNum + i, right.key(i));
+				left.setValue(leftKeyNum + i, right.value(i));
+			}
+			left.setKeyNum(leftKeyNum + rightKeyNum);
+			int after = right.after();
+			if(after != NO_PAGE) {
+				Page next = pin(after);
+				next.setPre(left.id);
+				unpin(next);
+			}
+			left.setAfter(after);
+		}else {
+			left.setKey(leftKeyNum, parent.key(index));
+			for(int i = 0; i < rightKeyNum; i++) {
+				left.setKey(leftKeyNum + 1 + i, right.key(i));
+				left.setChild(leftKeyNum + 1 + i, right.child(i));
+			}
+			left.setChild(leftKeyNum + 1 + rightKeyNum, right.child(rightKeyNum));
+			left.setKeyNum(leftKeyNum + 1 + rightKeyNum);
+		}
+		int parentKeyNum = parent.keyNum();
+		for(int i = index; i < parentKeyNum - 1; i++) {
+			parent.setKey(i, parent.key(i + 1));
+			parent.setChild(i + 1, parent.child(i + 2));
+		}
+		parent.setKeyNum(parentKeyNum - 1);
+		free(right);
+	}
+
+	//Walk from the root to the external node which may contain the key and record the path
+	//Return the level of the external node
+	private int descend(int key) {
+		int pageId = root;
+		int level = 0;
+		while(true) {
+			pathPages[level] = pageId;
+			Page node = pin(pageId);
+			if(node.type() == EXTERNAL) {
+				unpin(node);
+				return level;
+			}
+			int index = upperBound(node, key);
+			pathIndexes[level] = index;
+			pageId = node.child(index);
+			unpin(node);
+			level++;
+		}
+	}
+
+	private int findLeaf(int key) {
+		int pageId = root;
+		while(true) {
+			Page node = pin(pageId);
+			boolean external = node.type() == EXTERNAL;
+			int child = external ? NO_PAGE : node.child(upperBound(node, key));
+			unpin(node);
+			if(external)
+				return pageId;
+			pageId = child;
+		}
+	}
+
+	//Number of keys in the node which are not larger than the given key
+	private int upperBound(Page node, int key) {
+		int keyNum = node.keyNum();
+		if(keyNum == 0)
+			return 0;
+		int base = 0;
+		int n = keyNum;
+		while(n > 1) {
+			int half = n >>> 1;
+			base = node.key(base + half) <= key ? base + half : base;
+			n -= half;
+		}
+		return base + (node.key(base) <= key ? 1 : 0);
+	}
+
+	private int indexOf(Page leaf, int key) {
+		int index = upperBound(leaf, key) - 1;
+		if(index >= 0 && leaf.key(index) == key)
+			return index;
+		return -1;
+	}
+
+	//Take a page from the free list, or append one to the file
+	//The page is returned pinned
+	private Page allocate(byte type) {
+		Page page;
+		if(freeList != NO_PAGE) {
+			page = pin(freeList);
+			freeList = page.buffer.getInt(NEXT_FREE);
+		}else {
+			page = pin(pageCount++);
+		}
+		page.buffer.put(TYPE, type);
+		page.setKeyNum(0);
+		page.setPre(NO_PAGE);
+		page.setAfter(NO_PAGE);
+		return page;
+	}
+
+	private void free(Page page) {
+		page.buffer.put(TYPE, FREE);
+		page.buffer.putInt(NEXT_FREE, freeList);
+		page.dirty = true;
+		freeList = page.id;
+	}
+
+	private Page pin(int pageId) {
+		return new Page(pageId, store.pin(pageId));
+	}
+
+	private void unpin(Page page) {
+		store.unpin(page.id, page.dirty);
+	}
+
+	//The root, page count and free list are only kept in memory between flushes
+	private void writeHeader() {
+		Page header = pin(0);
+		header.buffer.putInt(HEADER_MAGIC, MAGIC);
+		header.buffer.putInt(HEADER_VERSION, FORMAT_VERSION);
+		header.buffer.putInt(HEADER_ORDER, MaxChildrenNum);
+		header.buffer.putInt(HEADER_PAGE_SIZE, pageSize);
+		header.buffer.putInt(HEADER_ROOT, root);
+		header.buffer.putInt(HEADER_PAGE_COUNT, pageCount);
+		header.buffer.putInt(HEADER_FREE_LIST, freeList);
+		header.dirty = true;
+		unpin(header);
+	}
+
+	//Write all modified pages to the file
+	public void flush() throws IOException {
+		writeHeader();
+		store.flush();
+	}
+
+	public void close() throws IOException {
+		flush();
+		store.close();
+		if(channel != null)
+			channel.close();
+	}
+
+	public PageStore pageStore() {
+		return store;
+	}
+
+	//View of a pinned node page, the buffer holds exactly the page
+	//Every setter marks the page dirty, so it is written back when it is evicted or flushed
+	final class Page {
+		final int id;
+		final ByteBuffer buffer;
+		boolean dirty;
+
+		Page(int id, ByteBuffer buffer){
+			this.id = id;
+			this.buffer = buffer;
+			this.dirty = false;
+		}
+
+		byte type() {
+			return buffer.get(TYPE);
+		}
+
+		int keyNum() {
+			return buffer.getInt(KEY_NUM);
+		}
+
+		void setKeyNum(int keyNum) {
+			buffer.putInt(KEY_NUM, keyNum);
+			dirty = true;
+		}
+
+		int key(int i) {
+			return buffer.getInt(KEYS + 4 * i);
+		}
+
+		void setKey(int i, int key) {
+			buffer.putInt(KEYS + 4 * i, key);
+			dirty = true;
+		}
+
+		int child(int i) {
+			return buffer.getInt(childrenOffset + 4 * i);
+		}
+
+		void setChild(int i, int child) {
+			buffer.putInt(childrenOffset + 4 * i, child);
+			dirty = true;
+		}
+
+		double value(int i) {
+			return buffer.getDouble(valuesOffset + 8 * i);
+		}
+
+		void setValue(int i, double value) {
+			buffer.putDouble(valuesOffset + 8 * i, value);
+			dirty = true;
+		}
+
+		int pre() {
+			return buffer.getInt(PRE);
+		}
+
+		void setPre(int pre) {
+			buffer.putInt(PRE, pre);
+			dirty = true;
+		}
+
+		int after() {
+			return buffer.getInt(AFTER);
+		}
+
+		void setAfter(int after) {
+			buffer.putInt(AFTER, after);
+			dirty = true;
+		}
+
+		//Shift the pairs from index one position right and store the pair at index
+		void insertEntry(int index, int key, double value) {
+			int keyNum = keyNum();
+			for(int i = keyNum; i > index; i--) {
+				setKey(i, key(i - 1));
+				setValue(i, value(i - 1));
+			}
+			setKey(index, key);
+			setValue(index, value);
+			setKeyNum(keyNum + 1);
+		}
+
+		void removeEntry(int index) {
+			int keyNum = keyNum();
+			for(int i = index; i < keyNum - 1; i++) {
+				setKey(i, key(i + 1));
+				setValue(i, value(i + 1));
+			}
+			setKeyNum(keyNum - 1);
+		}
+
+		//Store a key at index and the child on its right, the keys and children behind are shifted right
+		void insertChild(int index, int key, int child) {
+			int keyNum = keyNum();
+			for(int i = keyNum; i > index; i--) {
+				setKey(i, key(i - 1));
+				setChild(i + 1, child(i));
+			}
+			setKey(index, key);
+			setChild(index + 1, child);
+			setKeyNum(keyNum + 1);
+		}
+	}
+
+	//Where the pages of a tree live
+	//A pinned page stays at the same place in memory until it is unpinned
+	interface PageStore extends Closeable {
+		//Return a buffer holding exactly the page, pages beyond the end of the file read as zeros
+		ByteBuffer pin(int pageId) throws UncheckedIOException;
+		//Release a pinned page, dirty tells whether it was modified
+		void unpin(int pageId, boolean dirty);
+		//Write all modified pages to the file
+		void flush() throws IOException;
+	}
+
+	//Memory-mapped page store, the operating system decides which pages stay in memory
+	//The file is mapped in segments which are mapped the first time one of their pages is used
+	static class MappedPageStore implements PageStore {
+
+		//The file grows one segment of this size at a time
+		private final static int SEGMENT_SIZE = 1 << 24;
+
+		private final FileChannel channel;
+		private final int pageSize;
+		private final int pagesPerSegment;
+		private final List<MappedByteBuffer> segments = new ArrayList<>();
+
+		MappedPageStore(FileChannel channel, int pageSize){
+			this.channel = channel;
+			this.pageSize = pageSize;
+			this.pagesPerSegment = SEGMENT_SIZE / pageSize;
+		}
+
+		public ByteBuffer pin(int pageId) {
+			int segment = pageId / pagesPerSegment;
+			while(segments.size() <= segment) {
+				segments.add(null);
+			}
+			MappedByteBuffer buffer = segments.get(segment);
+			if(buffer == null) {
+				try {
+					buffer = channel.map(FileChannel.MapMode.READ_WRITE, (long)segment * pagesPerSegment * pageSize, (long)pagesPerSegment * pageSize);
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+				segments.set(segment, buffer);
+			}
+			return buffer.slice((pageId % pagesPerSegment) * pageSize, pageSize).order(ByteOrder.LITTLE_ENDIAN);
+		}
+
+		//Modified pages are tracked by the operating system
+		public void unpin(int pageId, boolean dirty) {
+		}
+
+		public void flush() {
+			for(MappedByteBuffer segment : segments) {
+				if(segment != null)
+					segment.force();
+			}
+		}
+
+		public void close() {
+			segments.clear();
+		}
+
+	}
+
+	//Page store in direct memory, used when the tree has no file
+	//Pages are carved out of slabs which are allocated the first time one of their pages is used,
+	//so the garbage collector tracks one buffer per slab instead of several objects per node
+	static class ArenaPageStore implements PageStore {
+
+		private final static int SLAB_SIZE = 1 << 24;
+
+		private final int pageSize;
+		private final int pagesPerSlab;
+		private final List<ByteBuffer> slabs = new ArrayList<>();
+
+		ArenaPageStore(int pageSize){
+			this.pageSize = pageSize;
+			this.pagesPerSlab = SLAB_SIZE / pageSize;
+		}
+
+		public ByteBuffer pin(int pageId) {
+			int slab = pageId / pagesPerSlab;
+			while(slabs.size() <= slab) {
+				slabs.add(ByteBuffer.allocateDirect(pagesPerSlab * pageSize));
+			}
+			return slabs.get(slab).slice((pageId % pagesPerSlab) * pageSize, pageSize).order(ByteOrder.LITTLE_ENDIAN);
+		}
+
+		public void unpin(int pageId, boolean dirty) {
+		}
+
+		public void flush() {
+		}
+
+		//The slabs are freed by the garbage collector once they are unreachable
+		public void close() {
+			slabs.clear();
+		}
+
+		//Bytes of direct memory taken by the slabs
+		public long reservedBytes() {
+			return (long)slabs.size() * pagesPerSlab * pageSize;
+		}
+
+	}
+
+	//Bounded cache of pages in front of the file
+	//A page stays in its frame while it is pinned, unpinned frames are reused with the CLOCK algorithm:
+	//the hand sweeps over the frames, clears the referenced bit of recently used ones and evicts the first one without it
+	//A dirty page is written back when its frame is reused or on flush
+	static class BufferPool implements PageStore {
+
+		private final FileChannel channel;
+		private final int pageSize;
+		private final ByteBuffer[] frames;
+		private final int[] framePages;
+		private final int[] pinCounts;
+		private final boolean[] dirty;
+		private final boolean[] referenced;
+		private int hand;
+
+		//Open addressing table from page id to frame, removal shifts the following entries back
+		private final int[] tablePages;
+		private final int[] tableFrames;
+		private final int tableMask;
+
+		private long hits;
+		private long misses;
+		private long evictions;
+		private long writeBacks;
+
+		BufferPool(FileChannel channel, int pageSize, int frameNum){
+			if(frameNum < 8)
+				throw new IllegalArgumentException("A buffer pool needs at least 8 frames: " + frameNum);
+			this.channel = channel;
+			this.pageSize = pageSize;
+			this.frames = new ByteBuffer[frameNum];
+			this.framePages = new int[frameNum];
+			this.pinCounts = new int[frameNum];
+			this.dirty = new boolean[frameNum];
+			this.referenced = new boolean[frameNum];
+			ByteBuffer memory = ByteBuffer.allocateDirect(frameNum * pageSize);
+			for(int i = 0; i < frameNum; i++) {
+				frames[i] = memory.slice(i * pageSize, pageSize).order(ByteOrder.LITTLE_ENDIAN);
+				framePages[i] = -1;
+			}
+			int tableSize = Integer.highestOneBit(frameNum * 2 - 1) << 1;
+			this.tablePages = new int[tableSize];
+			this.tableFrames = new int[tableSize];
+			this.tableMask = tableSize - 1;
+			Arrays.fill(tablePages, -1);
+		}
+
+		public ByteBuffer pin(int pageId) {
+			int frame = lookup(pageId);
+			if(frame != -1) {
+				hits++;
+			}else {
+				misses++;
+				frame = victim();
+				if(framePages[frame] != -1) {
+					evictions++;
+					if(dirty[frame])
+						write(frame);
+					remove(framePages[frame]);
+				}
+				read(frame, pageId);
+				framePages[frame] = pageId;
+				dirty[frame] = false;
+				put(pageId, frame);
+			}
+			pinCounts[frame]++;
+			referenced[frame] = true;
+			return frames[frame];
+		}
+
+		public void unpin(int pageId, boolean modified) {
+			int frame = lookup(pageId);
+			if(frame == -1 || pinCounts[frame] == 0)
+				throw new IllegalStateException("Page " + pageId + " isn't pinned");
+			pinCounts[frame]--;
+			dirty[frame] |= modified;
+		}
+
+		public void flush() throws IOException {
+			for(int frame = 0; frame < frames.length; frame++) {
+				if(dirty[frame]) {
+					write(frame);
+					dirty[frame] = false;
+				}
+			}
+			channel.force(false);
+		}
+
+		public void close() throws IOException {
+			flush();
+		}
+
+		//Sweep the hand until an unpinned frame without the referenced bit is found
+		private int victim() {
+			for(int step = 0; step < 2 * frames.length; step++) {
+				int frame = hand;
+				hand = hand + 1 == frames.length ? 0 : hand + 1;
+				if(framePages[frame] == -1)
+					return frame;
+				if(pinCounts[frame] != 0)
+					continue;
+				if(referenced[frame]) {
+					referenced[frame] = false;
+					continue;
+				}
+				return frame;
+			}
+			throw new IllegalStateException("All " + frames.length + " frames of the buffer pool are pinned");
+		}
+
+		private void read(int frame, int pageId) {
+			ByteBuffer buffer = frames[frame];
+			buffer.clear();
+			long position = (long)pageId * pageSize;
+			try {
+				while(buffer.hasRemaining()) {
+					if(channel.read(buffer, position + buffer.position()) < 0)
+						break;
+				}
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			//The part beyond the end of the file reads as zeros
+			while(buffer.hasRemaining()) {
+				buffer.put((byte)0);
+			}
+		}
+
+		private void write(int frame) {
+			ByteBuffer buffer = frames[frame];
+			buffer.clear();
+			long position = (long)framePages[frame] * pageSize;
+			try {
+				while(buffer.hasRemaining()) {
+					channel.write(buffer, position + buffer.position());
+				}
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			writeBacks++;
+		}
+
+		private int slot(int pageId) {
+			return (pageId * 0x9E3779B9 >>> 7) & tableMask;
+		}
+
+		private int lookup(int pageId) {
+			for(int i = slot(pageId); tablePages[i] != -1; i = (i + 1) & tableMask) {
+				if(tablePages[i] == pageId)
+					return tableFrames[i];
+			}
+			return -1;
+		}
+
+		private void put(int pageId, int frame) {
+			int i = slot(pageId);
+			while(tablePages[i] != -1) {
+				i = (i + 1) & tableMask;
+			}
+			tablePages[i] = pageId;
+			tableFrames[i] = frame;
+		}
+
+		//Remove a page and move back the following entries which can't be found any more
+		private void remove(int pageId) {
+			int i = slot(pageId);
+			while(tablePages[i] != pageId) {
+				i = (i + 1) & tableMask;
+			}
+			int hole = i;
+			for(int j = (hole + 1) & tableMask; tablePages[j] != -1; j = (j + 1) & tableMask) {
+				int home = slot(tablePages[j]);
+				//Move the entry when its home slot isn't cyclically in (hole, j]
+				if(((j - home) & tableMask) >= ((j - hole) & tableMask)) {
+					tablePages[hole] = tablePages[j];
+					tableFrames[hole] = tableFrames[j];
+					hole = j;
+				}
+			}
+			tablePages[hole] = -1;
+		}
+
+		public long hits() {
+			return hits;
+		}
+
+		public long misses() {
+			return misses;
+		}
+
+		public long evictions() {
+			return evictions;
+		}
+
+		public long writeBacks() {
+			return writeBacks;
+		}
+
+		public double hitRatio() {
+			long total = hits + misses;
+			return total == 0 ? 0 : (double)hits / total;
+		}
+
+		public String toString() {
+			return String.format("%d frames of %d bytes, %d hits, %d misses (%.2f%% hit ratio), %d evictions, %d write-backs",
+					frames.length, pageSize, hits, misses, 100 * hitRatio(), evictions, writeBacks);
+		}
+
+	}
+
+}
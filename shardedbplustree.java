@@ -0,0 +1,532 @@
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+//Range-partitioned front end over independent bplustree shards, so writers on different cores don't share a root
+//Shard i owns the keys in [lows[i], lows[i + 1]) and only its own thread touches its tree
+//Every operation is routed by key to the queue of its shard, so the operations one thread makes on one shard
+//are applied in the order they were made, inserts and deletes return as soon as they are queued
+//A range search asks every shard it covers at once, then visits their pairs shard after shard, which is key order
+//There is no snapshot across shards, a range search may see a write on one shard and miss an older one on another
+//A shard taking far more than its share of the writes is split at its median key into two new shards
+public class shardedbplustree implements AutoCloseable {
+
+	//Pending operations per shard, a writer which finds the queue full waits for the shard
+	private final static int QUEUE_CAPACITY = 4096;
+	//A shard adds its writes to the total in steps of this size
+	private final static int PUBLISH_INTERVAL = 1 << 10;
+	//A shard checks whether it is hot after this many writes
+	private final static int CHECK_INTERVAL = 1 << 16;
+	//A shard is hot when it took this many times its share of the writes since its last check,
+	//or all of them when there are too few shards for that
+	private final static int HOT_FACTOR = 2;
+	//Shards with fewer keys are never split
+	private final static int MIN_SPLIT_KEYS = 1 << 12;
+	//Fill factor of the trees of the two halves of a split shard, leaving room for the writes which made it hot
+	private final static double SPLIT_FILL_FACTOR = 0.7;
+
+	final int order;
+	private final int maxShards;
+	private volatile Layout layout;
+	private volatile boolean closed;
+	//Writes applied by every shard, published in steps of PUBLISH_INTERVAL
+	private final LongAdder writes = new LongAdder();
+	private final AtomicInteger nextShardId = new AtomicInteger();
+
+	//Split the key space evenly between shards shards, hot shards are split until there are maxShards
+	shardedbplustree(int order, int shards, int maxShards){
+		this(order, evenBoundaries(shards), maxShards);
+	}
+
+	//Shard i + 1 starts at boundaries[i], the boundaries must be strictly increasing
+	shardedbplustree(int order, int[] boundaries, int maxShards){
+		for(int i = 1; i < boundaries.length; i++) {
+			if(boundaries[i] <= boundaries[i - 1])
+				throw new IllegalArgumentException("The boundaries are not strictly increasing: " + Arrays.toString(boundaries));
+		}
+		if(boundaries.length > 0 && boundaries[0] == Integer.MIN_VALUE)
+			throw new IllegalArgumentException("The first shard can't be empty");
+		if(maxShards < boundaries.length + 1)
+			throw new IllegalArgumentException("maxShards is smaller than the number of shards: " + maxShards);
+		this.order = order;
+		this.maxShards = maxShards;
+		int[] lows = new int[boundaries.length + 1];
+		Shard[] shards = new Shard[lows.length];
+		lows[0] = Integer.MIN_VALUE;
+		System.arraycopy(boundaries, 0, lows, 1, boundaries.length);
+		for(int i = 0; i < shards.length; i++) {
+			long high = i + 1 < lows.length ? lows[i + 1] : (long)Integer.MAX_VALUE + 1;
+			shards[i] = new Shard(new bplustree(order), lows[i], high);
+		}
+		this.layout = new Layout(lows, shards);
+		for(Shard shard : shards) {
+			shard.thread.start();
+		}
+	}
+
+	private static int[] evenBoundaries(int shards) {
+		if(shards < 1)
+			throw new IllegalArgumentException("There must be at least one shard: " + shards);
+		int[] boundaries = new int[shards - 1];
+		long width = ((long)1 << 32) / shards;
+		for(int i = 0; i < boundaries.length; i++) {
+			boundaries[i] = (int)(Integer.MIN_VALUE + width * (i + 1));
+		}
+		return boundaries;
+	}
+
+	//Queue an insert on the shard of the key
+	public void insert(int key, double value) {
+		submit(new Insert(key, value));
+	}
+
+	//Queue a delete on the shard of the key
+	public void delete(int key) {
+		submit(new Delete(key));
+	}
+
+	//Return the value of a key, or notFound when the key doesn't exist
+	//It waits for the writes queued before it on the shard
+	public double searchValue(int key, double notFound) {
+		Search search = new Search(key, notFound);
+		submit(search);
+		search.await();
+		return search.value;
+	}
+
+	//Range search which visits every key-value pair in [startKey, endKey] in key order
+	//Return the number of visited pairs
+	public int search(int startKey, int endKey, bplustree.KeyValueVisitor visitor) {
+		if(startKey > endKey)
+			return 0;
+		checkOpen();
+		List<Collect> parts = new ArrayList<>();
+		collect(startKey, endKey, parts);
+		int count = 0;
+		for(Collect part : parts) {
+			part.await();
+			for(int i = 0; i < part.size; i++) {
+				visitor.visit(part.keys[i], part.values[i]);
+			}
+			count += part.size;
+		}
+		return count;
+	}
+
+	//Wait until every operation queued before the call is applied
+	public void flush() {
+		checkOpen();
+		Layout seen;
+		do {
+			seen = layout;
+			List<Barrier> barriers = new ArrayList<>();
+			for(Shard shard : seen.shards) {
+				Barrier barrier = new Barrier();
+				//A shard split meanwhile applied its queue to the new shards, the loop visits them
+				if(shard.offer(barrier))
+					barriers.add(barrier);
+			}
+			for(Barrier barrier : barriers) {
+				barrier.await();
+			}
+		}while(seen != layout);
+	}
+
+	//Apply the queued operations and stop the shard threads
+	public void close() {
+		if(closed)
+			return;
+		closed = true;
+		Set<Shard> stopped = new HashSet<>();
+		Layout seen;
+		do {
+			seen = layout;
+			for(Shard shard : seen.shards) {
+				if(stopped.add(shard))
+					shard.offer(new Stop());
+			}
+			for(Shard shard : seen.shards) {
+				try {
+					shard.thread.join();
+				}catch(InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return;
+				}
+			}
+		}while(seen != layout);
+	}
+
+	public int shardCount() {
+		return layout.shards.length;
+	}
+
+	//First key of every shard but the first one
+	public int[] boundaries() {
+		int[] lows = layout.lows;
+		return Arrays.copyOfRange(lows, 1, lows.length);
+	}
+
+	private void checkOpen() {
+		if(closed)
+			throw new IllegalStateException("The tree is closed");
+	}
+
+	private void submit(Keyed task) {
+		checkOpen();
+		while(!layout.shardOf(task.key).offer(task)) {
+			//The shard was split after the layout was read, the new layout is already published
+		}
+	}
+
+	//Queue a Collect for every shard holding keys of [startKey, endKey], in key order
+	private void collect(int startKey, int endKey, List<Collect> parts) {
+		Layout seen = layout;
+		int i = seen.indexOf(startKey);
+		long from = startKey;
+		while(i < seen.shards.length && from <= endKey) {
+			Shard shard = seen.shards[i];
+			int to = (int)Math.min(endKey, shard.high - 1);
+			Collect part = new Collect((int)from, to);
+			if(shard.offer(part)) {
+				parts.add(part);
+			}else {
+				collect((int)from, to, parts);
+			}
+			from = (long)to + 1;
+			i++;
+		}
+	}
+
+	//Put the two halves of a split shard in its place
+	private synchronized void replace(Shard shard, Shard first, Shard second) {
+		Layout old = layout;
+		int index = Arrays.asList(old.shards).indexOf(shard);
+		int[] lows = new int[old.lows.length + 1];
+		Shard[] shards = new Shard[old.shards.length + 1];
+		System.arraycopy(old.lows, 0, lows, 0, index + 1);
+		System.arraycopy(old.shards, 0, shards, 0, index);
+		lows[index + 1] = first.highKey();
+		shards[index] = first;
+		shards[index + 1] = second;
+		System.arraycopy(old.lows, index + 1, lows, index + 2, old.lows.length - index - 1);
+		System.arraycopy(old.shards, index + 1, shards, index + 2, old.shards.length - index - 1);
+		layout = new Layout(lows, shards);
+	}
+
+	//Shards and their first keys, replaced as a whole when a shard is split
+	private final static class Layout {
+
+		final int[] lows;
+		final Shard[] shards;
+
+		Layout(int[] lows, Shard[] shards) {
+			this.lows = lows;
+			this.shards = shards;
+		}
+
+		//Index of the shard holding the key
+		int indexOf(int key) {
+			int low = 0;
+			int high = lows.length;
+			while(high - low > 1) {
+				int mid = (low + high) >>> 1;
+				if(lows[mid] <= key) {
+					low = mid;
+				}else {
+					high = mid;
+				}
+			}
+			return low;
+		}
+
+		Shard shardOf(int key) {
+			return shards[indexOf(key)];
+		}
+
+	}
+
+	//One partition, its tree is only touched by its thread until the shard is retired by a split
+	private class Shard {
+
+		final bplustree tree;
+		final int low;
+		//First key after the shard, as a long so the last shard can end after Integer.MAX_VALUE
+		final long high;
+		final ArrayBlockingQueue<Task> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+		final Thread thread;
+		//Set under the monitor of the shard when it is split, nothing is queued afterwards
+		private boolean retired;
+		//Owned by the shard thread
+		private long unpublishedWrites;
+		private long writesSinceCheck;
+		private long totalAtCheck;
+
+		Shard(bplustree tree, int low, long high) {
+			this.tree = tree;
+			this.low = low;
+			this.high = high;
+			this.thread = new Thread(this::run, "bplustree-shard-" + nextShardId.getAndIncrement());
+			this.thread.setDaemon(true);
+			this.totalAtCheck = writes.sum();
+		}
+
+		int highKey() {
+			return (int)high;
+		}
+
+		//Queue a task, waiting while the queue is full
+		//Return false when the shard was split, the caller has to route the task with the new layout
+		boolean offer(Task task) {
+			while(true) {
+				synchronized(this) {
+					if(retired)
+						return false;
+					if(queue.offer(task))
+						return true;
+				}
+				LockSupport.parkNanos(10000);
+			}
+		}
+
+		private void run() {
+			try {
+				while(true) {
+					Task task = queue.take();
+					if(task instanceof Stop)
+						return;
+					task.apply(tree);
+					if(task instanceof Insert || task instanceof Delete) {
+						countWrite();
+						if(retired)
+							return;
+					}
+				}
+			}catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		private void countWrite() {
+			if(++unpublishedWrites == PUBLISH_INTERVAL) {
+				writes.add(unpublishedWrites);
+				unpublishedWrites = 0;
+			}
+			if(++writesSinceCheck < CHECK_INTERVAL)
+				return;
+			long total = writes.sum();
+			long recent = total - totalAtCheck;
+			int shards = layout.shards.length;
+			writesSinceCheck = 0;
+			totalAtCheck = total;
+			//The writes of this shard since its last check against its share of the writes of every shard
+			boolean hot = (double)CHECK_INTERVAL * shards >= (double)HOT_FACTOR * recent || CHECK_INTERVAL >= recent;
+			if(hot && !closed && shards < maxShards)
+				split();
+		}
+
+		//Split the tree at its median key into two new shards, which take over the queued tasks
+		private void split() {
+			Collect all = new Collect(Integer.MIN_VALUE, Integer.MAX_VALUE);
+			all.apply(tree);
+			if(all.size < MIN_SPLIT_KEYS)
+				return;
+			//Equal keys must stay on one side
+			int mid = all.size / 2;
+			while(mid > 0 && all.keys[mid] == all.keys[mid - 1]) {
+				mid--;
+			}
+			if(mid == 0)
+				return;
+			Shard first = new Shard(load(all, 0, mid), low, all.keys[mid]);
+			Shard second = new Shard(load(all, mid, all.size), all.keys[mid], high);
+			synchronized(this) {
+				retired = true;
+				//Nothing is queued any more, the new shards are not running yet, so apply the rest here in order
+				for(Task task = queue.poll(); task != null; task = queue.poll()) {
+					task.applySplit(first, second);
+				}
+				replace(this, first, second);
+				first.thread.start();
+				second.thread.start();
+			}
+			writes.add(unpublishedWrites);
+		}
+
+		//Build a tree from the sorted pairs [from, to) of a Collect
+		private bplustree load(Collect pairs, int from, int to) {
+			int[] keys = Arrays.copyOfRange(pairs.keys, from, to);
+			double[] values = Arrays.copyOfRange(pairs.values, from, to);
+			for(int i = 1; i < keys.length; i++) {
+				//Bulk loading needs distinct keys
+				if(keys[i] == keys[i - 1]) {
+					bplustree tree = new bplustree(order);
+					tree.insertBatch(keys, values);
+					return tree;
+				}
+			}
+			return new bplustree(order, keys, values, SPLIT_FILL_FACTOR);
+		}
+
+	}
+
+	//Operation waiting in the queue of a shard
+	private abstract static class Task {
+
+		abstract void apply(bplustree tree);
+
+		//Apply the task to the two halves of a split shard, first holds the keys below the first key of second
+		abstract void applySplit(Shard first, Shard second);
+
+	}
+
+	//Operation on one key, it belongs to the shard of the key
+	private abstract static class Keyed extends Task {
+
+		final int key;
+
+		Keyed(int key) {
+			this.key = key;
+		}
+
+		void applySplit(Shard first, Shard second) {
+			apply(key < second.low ? first.tree : second.tree);
+		}
+
+	}
+
+	private final static class Insert extends Keyed {
+
+		final double value;
+
+		Insert(int key, double value) {
+			super(key);
+			this.value = value;
+		}
+
+		void apply(bplustree tree) {
+			tree.insert(key, value);
+		}
+
+	}
+
+	private final static class Delete extends Keyed {
+
+		Delete(int key) {
+			super(key);
+		}
+
+		void apply(bplustree tree) {
+			tree.delete(key);
+		}
+
+	}
+
+	private final static class Search extends Keyed {
+
+		final CountDownLatch done = new CountDownLatch(1);
+		double value;
+
+		Search(int key, double notFound) {
+			super(key);
+			this.value = notFound;
+		}
+
+		void apply(bplustree tree) {
+			value = tree.searchValue(key, value);
+			done.countDown();
+		}
+
+		void await() {
+			awaitUninterruptibly(done);
+		}
+
+	}
+
+	//Gathers the pairs of [startKey, endKey] of one shard
+	private final static class Collect extends Task implements bplustree.KeyValueVisitor {
+
+		final int startKey;
+		final int endKey;
+		final CountDownLatch done = new CountDownLatch(1);
+		int[] keys = new int[16];
+		double[] values = new double[16];
+		int size;
+
+		Collect(int startKey, int endKey) {
+			this.startKey = startKey;
+			this.endKey = endKey;
+		}
+
+		public void visit(int key, double value) {
+			if(size == keys.length) {
+				keys = Arrays.copyOf(keys, size * 2);
+				values = Arrays.copyOf(values, size * 2);
+			}
+			keys[size] = key;
+			values[size] = value;
+			size++;
+		}
+
+		void apply(bplustree tree) {
+			tree.search(startKey, endKey, this);
+			done.countDown();
+		}
+
+		void applySplit(Shard first, Shard second) {
+			first.tree.search(startKey, endKey, this);
+			apply(second.tree);
+		}
+
+		void await() {
+			awaitUninterruptibly(done);
+		}
+
+	}
+
+	//Completed once every task queued before it is applied
+	private final static class Barrier extends Task {
+
+		final CountDownLatch done = new CountDownLatch(1);
+
+		void apply(bplustree tree) {
+			done.countDown();
+		}
+
+		void applySplit(Shard first, Shard second) {
+			done.countDown();
+		}
+
+		void await() {
+			awaitUninterruptibly(done);
+		}
+
+	}
+
+	//Ends the thread of a shard, close sends it to the new shards of a split as well
+	private final static class Stop extends Task {
+
+		void apply(bplustree tree) {
+		}
+
+		void applySplit(Shard first, Shard second) {
+		}
+
+	}
+
+	private static void awaitUninterruptibly(CountDownLatch latch) {
+		boolean interrupted = false;
+		while(true) {
+			try {
+				latch.await();
+				break;
+			}catch(InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if(interrupted)
+			Thread.currentThread().interrupt();
+	}
+
+}